@@ -0,0 +1,380 @@
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crops a list of pages to files. Every page goes through a decode and a crop stage, each a
+ * separate task on a bounded pool, so the stages of neighbouring pages overlap. The crop stage
+ * warps a strip at a time straight into the encoder; only shadow removal and black and white,
+ * which need local means over the whole page, warp the page whole first. At most
+ * {@link #setMaxPagesInMemory(int)} pages are decoded and not yet written at any time.
+ */
+public class BatchCropper {
+
+    private static final int STAGES = 2;
+    private static final int DEFAULT_MAX_PAGES_IN_MEMORY = 3;
+    private static final int DEFAULT_QUALITY = 90;
+
+    public static class Page {
+        final String mPath;
+        final float[] mPoints;
+        final File mOutput;
+
+        /**
+         * @param points packed crop points in the image's pixel coordinates, four for a warp or
+         *               any other count of at least three for a polygon
+         */
+        public Page(String path, float[] points, File output) {
+            mPath = path;
+            mPoints = points.clone();
+            mOutput = output;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread each time a page has been written, {@code finished} pages of
+         * {@code total} are done, failed ones included.
+         */
+        void onPageCropped(int index, int finished, int total);
+
+        /**
+         * Called on the main thread for a page that could not be decoded, cropped or written.
+         */
+        void onPageFailed(int index, Exception e);
+
+        /**
+         * Called on the main thread once, after the last page or after cancellation.
+         */
+        void onBatchFinished(boolean cancelled);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mThreads = STAGES;
+    private int mMaxPagesInMemory = DEFAULT_MAX_PAGES_IN_MEMORY;
+    private int mParallelism = 1;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+    private int mQuality = DEFAULT_QUALITY;
+    private int mCropQuality = PerspectiveWarp.QUALITY_BILINEAR;
+    private int mEnhancement = ScanEnhancer.MODE_NONE;
+
+    public void setThreads(int threads) {
+        this.mThreads = Math.max(1, threads);
+    }
+
+    public void setMaxPagesInMemory(int maxPages) {
+        this.mMaxPagesInMemory = Math.max(1, maxPages);
+    }
+
+    /**
+     * Threads that share the warp of a single page. Pages already run in parallel, so this only
+     * pays off when the warp is by far the slowest stage.
+     */
+    public void setCropParallelism(int parallelism) {
+        this.mParallelism = Math.max(1, parallelism);
+    }
+
+    public void setOutputFormat(Bitmap.CompressFormat format, int quality) {
+        if (format != Bitmap.CompressFormat.JPEG && format != Bitmap.CompressFormat.PNG) {
+            throw new IllegalArgumentException("unsupported format " + format);
+        }
+        this.mFormat = format;
+        this.mQuality = quality;
+    }
+
+    public void setCropQuality(int quality) {
+        this.mCropQuality = quality;
+    }
+
+    /**
+     * One of the {@link ScanEnhancer} modes, applied in the crop stage.
+     */
+    public void setScanEnhancement(int mode) {
+        this.mEnhancement = mode;
+    }
+
+    /**
+     * Starts cropping {@code pages} in the background. Cancelling the returned future stops
+     * feeding pages and abandons the ones in flight.
+     */
+    public Future<Void> start(List<Page> pages, Callback callback) {
+        BatchCallable callable = new BatchCallable(new ArrayList<>(pages));
+        BatchTask task = new BatchTask(callable, callback);
+        Thread thread = new Thread(task, "crop-batch");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    private class BatchTask extends FutureTask<Void> {
+
+        private final Callback mCallback;
+
+        BatchTask(BatchCallable callable, Callback callback) {
+            super(callable);
+            callable.mTask = this;
+            callable.mCallback = callback;
+            mCallback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.w("TAG", "batch crop failed", e);
+                }
+            }
+            final boolean cancelled = isCancelled();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onBatchFinished(cancelled);
+                    }
+                }
+            });
+        }
+    }
+
+    private class BatchCallable implements Callable<Void> {
+
+        private final List<Page> mPages;
+        private final Semaphore mPermits = new Semaphore(mMaxPagesInMemory);
+        private final CountDownLatch mDone;
+        private final AtomicInteger mFinished = new AtomicInteger();
+        private final int mParallelism = BatchCropper.this.mParallelism;
+        private final Bitmap.CompressFormat mFormat = BatchCropper.this.mFormat;
+        private final int mQuality = BatchCropper.this.mQuality;
+        private final int mCropQuality = BatchCropper.this.mCropQuality;
+        private final int mEnhancement = BatchCropper.this.mEnhancement;
+        private ThreadPoolExecutor mExecutor;
+        volatile Future<?> mTask;
+        Callback mCallback;
+
+        BatchCallable(List<Page> pages) {
+            mPages = pages;
+            mDone = new CountDownLatch(pages.size());
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            mExecutor = new ThreadPoolExecutor(mThreads, mThreads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "crop-batch-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                int submitted = 0;
+                for (; submitted < mPages.size() && !mTask.isCancelled(); submitted++) {
+                    // backpressure: wait until a decoded page has been written
+                    mPermits.acquire();
+                    mExecutor.execute(new DecodeStage(submitted));
+                }
+                for (int i = submitted; i < mPages.size(); i++) {
+                    mDone.countDown();
+                }
+                mDone.await();
+            } finally {
+                // not shutdownNow(): queued stages must still run to see the cancellation and
+                // release their pages
+                mExecutor.shutdown();
+            }
+            return null;
+        }
+
+        private void finishPage(final int index, final Exception error) {
+            mPermits.release();
+            mDone.countDown();
+            final int finished = mFinished.incrementAndGet();
+            if (mTask.isCancelled()) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback == null || mTask.isCancelled()) {
+                        return;
+                    }
+                    if (error != null) {
+                        mCallback.onPageFailed(index, error);
+                    } else {
+                        mCallback.onPageCropped(index, finished, mPages.size());
+                    }
+                }
+            });
+        }
+
+        private class DecodeStage implements Runnable {
+
+            private final int mIndex;
+
+            DecodeStage(int index) {
+                mIndex = index;
+            }
+
+            @Override
+            public void run() {
+                String path = mPages.get(mIndex).mPath;
+                Bitmap bitmap = null;
+                Exception error = null;
+                boolean queued = false;
+                try {
+                    if (!mTask.isCancelled()) {
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                        bitmap = BitmapFactory.decodeFile(path, options);
+                        if (bitmap == null) {
+                            error = new IOException("cannot decode " + path);
+                        } else {
+                            mExecutor.execute(new CropStage(mIndex, bitmap));
+                            queued = true;
+                        }
+                    }
+                } catch (RejectedExecutionException e) {
+                    // cancelled while decoding, the pool is shut down
+                } catch (RuntimeException e) {
+                    error = e;
+                } catch (OutOfMemoryError e) {
+                    error = new IOException("out of memory decoding " + path, e);
+                } finally {
+                    if (!queued) {
+                        if (bitmap != null) {
+                            bitmap.recycle();
+                        }
+                        finishPage(mIndex, error);
+                    }
+                }
+            }
+        }
+
+        private class CropStage implements Runnable {
+
+            private final int mIndex;
+            private final Bitmap mBitmap;
+
+            CropStage(int index, Bitmap bitmap) {
+                mIndex = index;
+                mBitmap = bitmap;
+            }
+
+            @Override
+            public void run() {
+                File output = mPages.get(mIndex).mOutput;
+                Exception error = null;
+                boolean done = false;
+                try {
+                    done = !mTask.isCancelled() && crop(output);
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                } catch (OutOfMemoryError e) {
+                    error = new IOException("out of memory cropping " + mPages.get(mIndex).mPath, e);
+                } finally {
+                    mBitmap.recycle();
+                    if (!done) {
+                        deletePartial(output);
+                    }
+                    finishPage(mIndex, error);
+                }
+            }
+
+            // false if cancelled on the way
+            private boolean crop(File output) throws IOException {
+                float[] points = mPages.get(mIndex).mPoints;
+                int[] size = CropStrips.getCropSize(mBitmap, null, points);
+                int width = size[0], height = size[1];
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+                    StripEncoder encoder = mFormat == Bitmap.CompressFormat.PNG
+                            ? new PngStripEncoder(out, width, height, points.length != 8)
+                            : new JpegStripEncoder(out, width, height, mQuality);
+                    if (mEnhancement == ScanEnhancer.MODE_NONE || mEnhancement == ScanEnhancer.MODE_GRAY) {
+                        StripEncoder strips = mEnhancement == ScanEnhancer.MODE_GRAY ? new GrayStrips(encoder) : encoder;
+                        if (!CropStrips.crop(mBitmap, null, points, mCropQuality, mParallelism, mTask, strips)) {
+                            return false;
+                        }
+                    } else {
+                        CropStrips.PixelWriter writer = new CropStrips.PixelWriter(width, height);
+                        if (!CropStrips.crop(mBitmap, null, points, mCropQuality, mParallelism, mTask, writer)) {
+                            return false;
+                        }
+                        int[] pixels = writer.getPixels();
+                        ScanEnhancer.enhance(pixels, width, height, mEnhancement, mParallelism);
+                        for (int y = 0; y < height; y += CropStrips.STRIP_ROWS) {
+                            if (mTask.isCancelled()) {
+                                return false;
+                            }
+                            encoder.writeRows(pixels, y * width, width, Math.min(CropStrips.STRIP_ROWS, height - y));
+                        }
+                    }
+                    encoder.finish();
+                }
+                return true;
+            }
+
+            private void deletePartial(File output) {
+                if (output.exists() && !output.delete()) {
+                    Log.w("TAG", "cannot delete partial " + output);
+                }
+            }
+        }
+    }
+
+    // gray needs no neighbourhood, so it is applied to each strip on its way to the encoder
+    private static class GrayStrips implements StripEncoder {
+
+        private final StripEncoder mEncoder;
+        private byte[] mGray;
+
+        GrayStrips(StripEncoder encoder) {
+            mEncoder = encoder;
+        }
+
+        @Override
+        public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+            if (mGray == null || mGray.length < pixels.length) {
+                mGray = new byte[pixels.length];
+            }
+            int end = offset + rows * stride;
+            ScanEnhancer.toGray(pixels, mGray, offset, end);
+            for (int i = offset; i < end; i++) {
+                int v = mGray[i] & 0xFF;
+                pixels[i] = pixels[i] & 0xFF000000 | v << 16 | v << 8 | v;
+            }
+            mEncoder.writeRows(pixels, offset, stride, rows);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mEncoder.finish();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps bitmaps and int arrays that are no longer needed for the next page of a scanning
+ * session, up to a memory budget, so that decoding, the magnifier and cropping stop allocating
+ * once the first pages went through. Requests are bucketed in quarter powers of two: a pooled
+ * buffer is handed out for any request it holds without wasting more than that. Thread-safe.
+ */
+public class CropBufferPool {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final int MIN_INTS = 16;
+
+    private final long mMaxBytes;
+    private final ArrayList<Object> mEntries = new ArrayList<>(); // oldest first
+    private final Set<Bitmap> mIssued = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    private long mBytes;
+    private long mHits, mMisses;
+
+    public CropBufferPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the most memory kept by buffers waiting in the pool; buffers in use do
+     *                 not count
+     */
+    public CropBufferPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size, a reconfigured pooled one if possible. The
+     * content is undefined.
+     */
+    public Bitmap getBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = takeBitmap(width * height * getBytesPerPixel(config));
+        }
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        synchronized (this) {
+            mIssued.add(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes {@code path} as ARGB_8888 into a pooled bitmap through
+     * {@link BitmapFactory.Options#inBitmap} when one is large enough. Returns null if the file
+     * cannot be decoded.
+     */
+    public Bitmap decodeFile(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        synchronized (this) {
+            options.inBitmap = takeBitmap(options.outWidth * options.outHeight * 4);
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap was not accepted, decode into a new one
+            Log.w("TAG", "cannot decode into pooled bitmap", e);
+            putBitmap(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (bitmap == null) {
+            putBitmap(options.inBitmap);
+            return null;
+        }
+        synchronized (this) {
+            mIssued.add(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Whether {@code bitmap} was handed out by this pool.
+     */
+    public synchronized boolean isPooled(Bitmap bitmap) {
+        return bitmap != null && mIssued.contains(bitmap);
+    }
+
+    /**
+     * Forgets that {@code bitmap} came from this pool, for bitmaps that are kept elsewhere for
+     * good, such as cached crops. {@link #isPooled(Bitmap)} is false for it from then on.
+     */
+    public synchronized void disown(Bitmap bitmap) {
+        mIssued.remove(bitmap);
+    }
+
+    /**
+     * Gives {@code bitmap} to the pool; it must not be used afterwards. Immutable bitmaps cannot
+     * be reused and are left alone.
+     */
+    public void putBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        synchronized (this) {
+            mIssued.remove(bitmap);
+            if (!mEntries.contains(bitmap)) {
+                mEntries.add(bitmap);
+                mBytes += bitmap.getAllocationByteCount();
+                trim();
+            }
+        }
+    }
+
+    /**
+     * Returns an array of at least {@code minLength} ints. The content is undefined.
+     */
+    public int[] getInts(int minLength) {
+        int length = getBucketLength(minLength);
+        synchronized (this) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                Object entry = mEntries.get(i);
+                if (entry instanceof int[] && ((int[]) entry).length >= minLength && ((int[]) entry).length <= length) {
+                    mEntries.remove(i);
+                    mBytes -= ((int[]) entry).length * 4L;
+                    mHits++;
+                    return (int[]) entry;
+                }
+            }
+            mMisses++;
+        }
+        return new int[length];
+    }
+
+    public void putInts(int[] ints) {
+        if (ints == null) {
+            return;
+        }
+        synchronized (this) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.get(i) == ints) {
+                    return;
+                }
+            }
+            mEntries.add(ints);
+            mBytes += ints.length * 4L;
+            trim();
+        }
+    }
+
+    /**
+     * Recycles the pooled bitmaps and drops the arrays. The pool stays usable.
+     */
+    public synchronized void release() {
+        for (Object entry : mEntries) {
+            if (entry instanceof Bitmap) {
+                ((Bitmap) entry).recycle();
+            }
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Requests served from the pool.
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Requests that had to allocate.
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    // smallest pooled bitmap holding bytes, unless it is more than a bucket too large
+    private Bitmap takeBitmap(int bytes) {
+        long limit = getBucketLength(bytes);
+        int best = -1;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < mEntries.size(); i++) {
+            Object entry = mEntries.get(i);
+            if (entry instanceof Bitmap) {
+                long allocated = ((Bitmap) entry).getAllocationByteCount();
+                if (allocated >= bytes && allocated <= limit && allocated < bestBytes) {
+                    best = i;
+                    bestBytes = allocated;
+                }
+            }
+        }
+        if (best < 0) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mBytes -= bestBytes;
+        return (Bitmap) mEntries.remove(best);
+    }
+
+    private void trim() {
+        while (mBytes > mMaxBytes && !mEntries.isEmpty()) {
+            Object entry = mEntries.remove(0);
+            if (entry instanceof Bitmap) {
+                mBytes -= ((Bitmap) entry).getAllocationByteCount();
+                ((Bitmap) entry).recycle();
+            } else {
+                mBytes -= ((int[]) entry).length * 4L;
+            }
+        }
+    }
+
+    // rounds up to 4, 5, 6 or 7 times a power of two
+    static int getBucketLength(int length) {
+        if (length <= MIN_INTS) {
+            return MIN_INTS;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length - 1) - 2;
+        return (((length - 1) >> shift) + 1) << shift;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+}
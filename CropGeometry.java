@@ -0,0 +1,243 @@
+/**
+ * Android-free crop geometry on primitive coordinates.
+ * <p>
+ * Quads are packed as {@code {ltX, ltY, rtX, rtY, rbX, rbY, lbX, lbY}}; corner indices follow
+ * the same order. Polygons are packed the same way, edge i runs from vertex i to vertex i + 1.
+ */
+public final class CropGeometry {
+
+    private CropGeometry() {
+    }
+
+    /**
+     * Signed side of (x, y) relative to the line through (x1, y1) and (x2, y2); zero means on
+     * the line.
+     */
+    public static double pointSideLine(double x1, double y1, double x2, double y2, double x, double y) {
+        return (x - x1) * (y2 - y1) - (y - y1) * (x2 - x1);
+    }
+
+    private static double pointSideLine(float[] quad, int p1, int p2, double x, double y) {
+        return pointSideLine(quad[p1 * 2], quad[p1 * 2 + 1], quad[p2 * 2], quad[p2 * 2 + 1], x, y);
+    }
+
+    private static double pointSideLine(float[] quad, int p1, int p2, int p) {
+        return pointSideLine(quad, p1, p2, quad[p * 2], quad[p * 2 + 1]);
+    }
+
+    /**
+     * Both diagonals must separate the other two corners.
+     */
+    public static boolean isConvexQuad(float[] quad) {
+        return pointSideLine(quad, 0, 2, 3) * pointSideLine(quad, 0, 2, 1) < 0
+                && pointSideLine(quad, 3, 1, 0) * pointSideLine(quad, 3, 1, 2) < 0;
+    }
+
+    /**
+     * Whether moving {@code corner} to (x, y) keeps the quad convex.
+     */
+    public static boolean canMoveCorner(float[] quad, int corner, double x, double y) {
+        int prev = (corner + 3) % 4;
+        int next = (corner + 1) % 4;
+        int opposite = (corner + 2) % 4;
+        if (pointSideLine(quad, prev, next, x, y) * pointSideLine(quad, prev, next, opposite) > 0) {
+            return false;
+        }
+        if (pointSideLine(quad, next, opposite, x, y) * pointSideLine(quad, next, opposite, prev) < 0) {
+            return false;
+        }
+        return pointSideLine(quad, prev, opposite, x, y) * pointSideLine(quad, prev, opposite, next) >= 0;
+    }
+
+    /**
+     * Whether segment (x1, y1)-(x2, y2) crosses or touches segment (x3, y3)-(x4, y4).
+     */
+    public static boolean segmentsIntersect(double x1, double y1, double x2, double y2,
+                                            double x3, double y3, double x4, double y4) {
+        double d1 = pointSideLine(x3, y3, x4, y4, x1, y1);
+        double d2 = pointSideLine(x3, y3, x4, y4, x2, y2);
+        double d3 = pointSideLine(x1, y1, x2, y2, x3, y3);
+        double d4 = pointSideLine(x1, y1, x2, y2, x4, y4);
+        if (d1 * d2 < 0 && d3 * d4 < 0) {
+            return true;
+        }
+        return d1 == 0 && onSegment(x3, y3, x4, y4, x1, y1)
+                || d2 == 0 && onSegment(x3, y3, x4, y4, x2, y2)
+                || d3 == 0 && onSegment(x1, y1, x2, y2, x3, y3)
+                || d4 == 0 && onSegment(x1, y1, x2, y2, x4, y4);
+    }
+
+    // (x, y) is known to be on the line through the segment
+    private static boolean onSegment(double x1, double y1, double x2, double y2, double x, double y) {
+        return Math.min(x1, x2) <= x && x <= Math.max(x1, x2) && Math.min(y1, y2) <= y && y <= Math.max(y1, y2);
+    }
+
+    /**
+     * Whether no two non-adjacent edges of the polygon intersect. O(count^2), use
+     * {@link #canMoveVertices} to keep a polygon simple while it is edited.
+     */
+    public static boolean isSimplePolygon(float[] points, int count) {
+        if (count < 3) {
+            return false;
+        }
+        for (int a = 0; a < count; a++) {
+            for (int b = a + 2; b < count; b++) {
+                if (a == 0 && b == count - 1) {
+                    continue;
+                }
+                if (edgesIntersect(points, count, a, b, 0, 0, 0, 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether shifting the {@code moved} consecutive vertices starting at {@code first} by
+     * (dx, dy) keeps a simple polygon simple. Only the edges touching the moved vertices are
+     * tested against the others, so a vertex or edge drag costs O(count).
+     */
+    public static boolean canMoveVertices(float[] points, int count, int first, int moved, double dx, double dy) {
+        for (int k = -1; k < moved; k++) {
+            int a = (first + k + count) % count;
+            for (int b = 0; b < count; b++) {
+                if (b == a || b == (a + 1) % count || a == (b + 1) % count) {
+                    continue;
+                }
+                if (edgesIntersect(points, count, a, b, first, moved, dx, dy)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean edgesIntersect(float[] points, int count, int a, int b,
+                                          int first, int moved, double dx, double dy) {
+        int a1 = (a + 1) % count;
+        int b1 = (b + 1) % count;
+        return segmentsIntersect(
+                shiftedX(points, count, a, first, moved, dx), shiftedY(points, count, a, first, moved, dy),
+                shiftedX(points, count, a1, first, moved, dx), shiftedY(points, count, a1, first, moved, dy),
+                shiftedX(points, count, b, first, moved, dx), shiftedY(points, count, b, first, moved, dy),
+                shiftedX(points, count, b1, first, moved, dx), shiftedY(points, count, b1, first, moved, dy));
+    }
+
+    private static double shiftedX(float[] points, int count, int i, int first, int moved, double dx) {
+        return (i - first + count) % count < moved ? points[i * 2] + dx : points[i * 2];
+    }
+
+    private static double shiftedY(float[] points, int count, int i, int first, int moved, double dy) {
+        return (i - first + count) % count < moved ? points[i * 2 + 1] + dy : points[i * 2 + 1];
+    }
+
+    /**
+     * Writes the mid point of edge i (corner i to corner i + 1) to {@code out[i * 2]}.
+     */
+    public static void getEdgeMidPoints(float[] points, int count, float[] out) {
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            out[i * 2] = (points[i * 2] + points[j * 2]) / 2;
+            out[i * 2 + 1] = (points[i * 2 + 1] + points[j * 2 + 1]) / 2;
+        }
+    }
+
+    /**
+     * Returns the first of {@code count} packed handles within {@code distance} of (x, y), or -1.
+     */
+    public static int findHandle(float[] handles, int offset, int count, float x, float y, float distance) {
+        float maxSquared = distance * distance;
+        for (int i = offset; i < offset + count; i++) {
+            float dx = x - handles[i * 2];
+            float dy = y - handles[i * 2 + 1];
+            if (dx * dx + dy * dy < maxSquared) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static boolean isInside(double x, double y, double width, double height) {
+        return x >= 0 && x <= width && y >= 0 && y <= height;
+    }
+
+    /**
+     * Drags handle {@code handle} to (x, y) inside a {@code width} x {@code height} image.
+     * Handles [0, count) are vertices, [count, 2 * count) edge mid points. Quad edges move along
+     * their axis and polygon edges along their normal. With {@code limit}, moves that would
+     * leave a quad concave or a polygon self-intersecting are ignored.
+     */
+    public static void moveHandle(float[] points, int count, int handle, float x, float y, boolean limit,
+                                  int width, int height) {
+        if (count != 4) {
+            movePolygonHandle(points, count, handle, x, y, limit, width, height);
+            return;
+        }
+        if (handle < 4) {
+            if (!limit || canMoveCorner(points, handle, x, y)) {
+                points[handle * 2] = x;
+                points[handle * 2 + 1] = y;
+            }
+            return;
+        }
+        int a = handle - 4;
+        int b = (a + 1) % 4;
+        if (limit && (!canMoveCorner(points, a, x, y) || !canMoveCorner(points, b, x, y))) {
+            return;
+        }
+        // top and bottom edges move vertically, right and left ones horizontally
+        boolean vertical = (a & 1) == 0;
+        float xoff = vertical ? 0 : x - (points[a * 2] + points[b * 2]) / 2;
+        float yoff = vertical ? y - (points[a * 2 + 1] + points[b * 2 + 1]) / 2 : 0;
+        movePoint(points, a, xoff, yoff, width, height);
+        movePoint(points, b, xoff, yoff, width, height);
+    }
+
+    private static void movePolygonHandle(float[] points, int count, int handle, float x, float y, boolean limit,
+                                          int width, int height) {
+        if (handle < count) {
+            if (limit && !canMoveVertices(points, count, handle, 1,
+                    x - points[handle * 2], y - points[handle * 2 + 1])) {
+                return;
+            }
+            points[handle * 2] = x;
+            points[handle * 2 + 1] = y;
+            return;
+        }
+        int a = handle - count;
+        int b = (a + 1) % count;
+        float ex = points[b * 2] - points[a * 2];
+        float ey = points[b * 2 + 1] - points[a * 2 + 1];
+        double length = Math.sqrt(ex * ex + ey * ey);
+        if (length == 0) {
+            return;
+        }
+        double nx = -ey / length;
+        double ny = ex / length;
+        double distance = (x - (points[a * 2] + points[b * 2]) / 2) * nx
+                + (y - (points[a * 2 + 1] + points[b * 2 + 1]) / 2) * ny;
+        float xoff = (float) (distance * nx);
+        float yoff = (float) (distance * ny);
+        if (!isInside(points[a * 2] + xoff, points[a * 2 + 1] + yoff, width, height)
+                || !isInside(points[b * 2] + xoff, points[b * 2 + 1] + yoff, width, height)) {
+            return;
+        }
+        if (limit && !canMoveVertices(points, count, a, 2, xoff, yoff)) {
+            return;
+        }
+        points[a * 2] += xoff;
+        points[a * 2 + 1] += yoff;
+        points[b * 2] += xoff;
+        points[b * 2 + 1] += yoff;
+    }
+
+    private static void movePoint(float[] points, int corner, float xoff, float yoff, int width, int height) {
+        float x = points[corner * 2] + xoff;
+        float y = points[corner * 2 + 1] + yoff;
+        if (isInside(x, y, width, height)) {
+            points[corner * 2] = x;
+            points[corner * 2 + 1] = y;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * LRU cache of crop results, bounded by their byte size. Entries are keyed by a generation
+ * number of the image they were cropped from, the exact crop points and the crop settings.
+ * Every image gets its own generation the first time it is seen and keeps it while its pixels
+ * stay the same, so going back to an earlier page still hits. Thread-safe.
+ */
+public class CropResultCache {
+
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private final LruCache<Key, Bitmap> mCache;
+    private final Map<Object, int[]> mGenerations = new WeakHashMap<>(); // {generation, bitmap generation id}
+    private int mNextGeneration;
+
+    public CropResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public CropResultCache(int maxBytes) {
+        mCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the key of a crop of {@code image}, a {@link Bitmap} or {@link TiledImageSource}.
+     * Take it before cropping and use it for both {@link #get(Key)} and {@link #put(Key, Bitmap)},
+     * so a crop of pixels that change meanwhile is filed under the pixels it was cropped from.
+     */
+    public Key getKey(Object image, float[] points, int quality, int enhancement) {
+        return new Key(getGeneration(image), points.clone(), quality, enhancement);
+    }
+
+    /**
+     * Returns the cached crop or null. The bitmap is shared: don't modify, recycle or pool it.
+     */
+    public Bitmap get(Key key) {
+        Bitmap bitmap = mCache.get(key);
+        return bitmap == null || bitmap.isRecycled() ? null : bitmap;
+    }
+
+    public void put(Key key, Bitmap crop) {
+        if (crop != null) {
+            mCache.put(key, crop);
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * Bytes held by the cached crops.
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    // a bitmap whose pixels changed since its generation was handed out gets a new one
+    private synchronized int getGeneration(Object image) {
+        int contentId = image instanceof Bitmap ? ((Bitmap) image).getGenerationId() : 0;
+        int[] generation = mGenerations.get(image);
+        if (generation == null || generation[1] != contentId) {
+            generation = new int[]{++mNextGeneration, contentId};
+            mGenerations.put(image, generation);
+        }
+        return generation[0];
+    }
+
+    public static final class Key {
+        final int mGeneration;
+        final float[] mPoints;
+        final int mQuality;
+        final int mEnhancement;
+        final int mHash;
+
+        private Key(int generation, float[] points, int quality, int enhancement) {
+            mGeneration = generation;
+            mPoints = points;
+            mQuality = quality;
+            mEnhancement = enhancement;
+            mHash = ((generation * 31 + Arrays.hashCode(points)) * 31 + quality) * 31 + enhancement;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mGeneration == key.mGeneration && mQuality == key.mQuality
+                    && mEnhancement == key.mEnhancement && Arrays.equals(mPoints, key.mPoints);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
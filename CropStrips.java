@@ -0,0 +1,244 @@
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Crops in horizontal strips of output rows, reading only the source window each strip needs
+ * and handing every strip to a {@link StripEncoder}, so neither the source pixels nor the
+ * output are held as a whole. Four points are warped, other counts masked as a polygon.
+ */
+public final class CropStrips {
+
+    public static final int STRIP_ROWS = 256;
+    /**
+     * Most source pixels read at once. A strip of a rotated quad reads a window far wider and
+     * taller than itself, so such strips are warped in blocks of columns.
+     */
+    public static final int WINDOW_PIXELS = 1 << 22;
+
+    private CropStrips() {
+    }
+
+    /**
+     * Crops from {@code source}, or from {@code bmp} when there is no source. Returns false if
+     * {@code cancel} was cancelled on the way; {@link StripEncoder#finish()} is left to the
+     * caller.
+     */
+    public static boolean crop(Bitmap bmp, TiledImageSource source, float[] points, int quality, int parallelism,
+                               Future<?> cancel, StripEncoder encoder) throws IOException {
+        return points.length == 8
+                ? warp(bmp, source, points, quality, parallelism, cancel, encoder)
+                : mask(bmp, source, points, parallelism, cancel, encoder);
+    }
+
+    /**
+     * Size {@code {width, height}} of the output of {@link #crop}.
+     */
+    public static int[] getCropSize(Bitmap bmp, TiledImageSource source, float[] points) {
+        if (points.length == 8) {
+            return new int[]{PerspectiveWarp.getOutputWidth(points), PerspectiveWarp.getOutputHeight(points)};
+        }
+        int[] bounds = getPolygonBounds(bmp, source, points);
+        return new int[]{bounds[2] - bounds[0], bounds[3] - bounds[1]};
+    }
+
+    private static boolean warp(Bitmap bmp, TiledImageSource source, float[] quad, final int quality, int parallelism,
+                                Future<?> cancel, StripEncoder encoder) throws IOException {
+        final int width = PerspectiveWarp.getOutputWidth(quad);
+        int height = PerspectiveWarp.getOutputHeight(quad);
+        double[] transform = PerspectiveWarp.computeTransform(quad, width, height);
+        final int[] dst = new int[width * Math.min(height, STRIP_ROWS)];
+        int[] src = null;
+        for (int y = 0; y < height; y += STRIP_ROWS) {
+            if (cancel != null && cancel.isCancelled()) {
+                return false;
+            }
+            final int stripStart = y;
+            int rows = Math.min(STRIP_ROWS, height - y);
+            src = warpStrip(bmp, source, transform, width, y, y + rows, parallelism, src, new WindowWarp() {
+                @Override
+                public void warp(int[] src, int srcWidth, int srcHeight, double[] m, int colStart, int colEnd,
+                                 int rowStart, int rowEnd) {
+                    PerspectiveWarp.warp(src, srcWidth, srcHeight, m, dst, (rowStart - stripStart) * width + colStart,
+                            width, colStart, colEnd, rowStart, rowEnd, quality);
+                }
+            });
+            encoder.writeRows(dst, 0, width, rows);
+        }
+        return true;
+    }
+
+    /**
+     * Runs {@code warp} over output rows [0, height) of {@code transform}, a strip at a time,
+     * reading only the source window each strip covers, so the source is never copied as a
+     * whole. The window buffer comes from {@code pool} if there is one. Returns false if
+     * {@code cancel} was cancelled on the way.
+     */
+    public static boolean warp(Bitmap bmp, TiledImageSource source, double[] transform, int width, int height,
+                               int parallelism, Future<?> cancel, CropBufferPool pool, WindowWarp warp) {
+        int[] src = null;
+        try {
+            for (int y = 0; y < height; y += STRIP_ROWS) {
+                if (cancel != null && cancel.isCancelled()) {
+                    return false;
+                }
+                if (src == null && pool != null) {
+                    src = pool.getInts(getWindowSize(bmp, source, transform, width, y, Math.min(height, y + STRIP_ROWS)));
+                }
+                src = warpStrip(bmp, source, transform, width, y, Math.min(height, y + STRIP_ROWS), parallelism, src, warp);
+            }
+            return true;
+        } finally {
+            if (pool != null) {
+                pool.putInts(src);
+            }
+        }
+    }
+
+    /**
+     * Warps a block of output pixels from one window of source pixels. {@code m} addresses the
+     * window, whose first pixel is {@code src[0]}. Called from several threads at once, for
+     * disjoint rows.
+     */
+    public interface WindowWarp {
+        void warp(int[] src, int srcWidth, int srcHeight, double[] m, int colStart, int colEnd, int rowStart, int rowEnd);
+    }
+
+    // warps output rows [rowStart, rowEnd) a window block at a time, reading each block's source
+    // window into src, or a larger array if it is too small
+    private static int[] warpStrip(Bitmap bmp, TiledImageSource source, double[] transform, int width,
+                                   int rowStart, int rowEnd, int parallelism, int[] src, final WindowWarp warp) {
+        for (final int[] block : getWindows(bmp, source, transform, width, rowStart, rowEnd)) {
+            final int srcWidth = block[2];
+            final int srcHeight = block[3];
+            if (src == null || src.length < srcWidth * srcHeight) {
+                src = new int[srcWidth * srcHeight];
+            }
+            readPixels(bmp, source, block[0], block[1], srcWidth, srcHeight, src);
+            final double[] m = PerspectiveWarp.offsetSource(transform.clone(), block[0], block[1]);
+            final int[] windowSrc = src;
+            ParallelBands.run(block[7] - block[6], parallelism, new ParallelBands.Band() {
+                @Override
+                public void run(int bandStart, int bandEnd) {
+                    warp.warp(windowSrc, srcWidth, srcHeight, m, block[4], block[5], block[6] + bandStart, block[6] + bandEnd);
+                }
+            });
+        }
+        return src;
+    }
+
+    private static int getWindowSize(Bitmap bmp, TiledImageSource source, double[] transform, int width,
+                                     int rowStart, int rowEnd) {
+        int size = 0;
+        for (int[] block : getWindows(bmp, source, transform, width, rowStart, rowEnd)) {
+            size = Math.max(size, block[2] * block[3]);
+        }
+        return size;
+    }
+
+    // source windows of output rows [rowStart, rowEnd), split down to WINDOW_PIXELS
+    private static List<int[]> getWindows(Bitmap bmp, TiledImageSource source, double[] transform, int width,
+                                          int rowStart, int rowEnd) {
+        int imageWidth = source != null ? source.getWidth() : bmp.getWidth();
+        int imageHeight = source != null ? source.getHeight() : bmp.getHeight();
+        return PerspectiveWarp.splitWindows(transform, imageWidth, imageHeight, 0, width, rowStart, rowEnd, WINDOW_PIXELS);
+    }
+
+    private static boolean mask(Bitmap bmp, TiledImageSource source, final float[] points, int parallelism,
+                                Future<?> cancel, StripEncoder encoder) throws IOException {
+        int[] bounds = getPolygonBounds(bmp, source, points);
+        final int left = bounds[0];
+        final int width = bounds[2] - left;
+        int height = bounds[3] - bounds[1];
+        final int[] pixels = new int[width * Math.min(height, STRIP_ROWS)];
+        for (int y = 0; y < height; y += STRIP_ROWS) {
+            if (cancel != null && cancel.isCancelled()) {
+                return false;
+            }
+            final int top = bounds[1] + y;
+            int rows = Math.min(STRIP_ROWS, height - y);
+            readPixels(bmp, source, left, top, width, rows, pixels);
+            ParallelBands.run(rows, parallelism, new ParallelBands.Band() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    PolygonMask.mask(pixels, width, left, top, points, points.length / 2, rowStart, rowEnd);
+                }
+            });
+            encoder.writeRows(pixels, 0, width, rows);
+        }
+        return true;
+    }
+
+    private static int[] getPolygonBounds(Bitmap bmp, TiledImageSource source, float[] points) {
+        int imageWidth = source != null ? source.getWidth() : bmp.getWidth();
+        int imageHeight = source != null ? source.getHeight() : bmp.getHeight();
+        return PolygonMask.getBounds(points, points.length / 2, imageWidth, imageHeight, new int[4]);
+    }
+
+    private static void readPixels(Bitmap bmp, TiledImageSource source, int left, int top, int width, int height, int[] pixels) {
+        if (source != null) {
+            source.readPixels(left, top, width, height, pixels, 0, width);
+        } else {
+            bmp.getPixels(pixels, 0, width, left, top, width, height);
+        }
+    }
+
+    /**
+     * Collects the strips into an ARGB_8888 bitmap.
+     */
+    public static class BitmapWriter implements StripEncoder {
+
+        private final Bitmap mBitmap;
+        private int mRow;
+
+        public BitmapWriter(int width, int height) {
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+
+        @Override
+        public void writeRows(int[] pixels, int offset, int stride, int rows) {
+            mBitmap.setPixels(pixels, offset, stride, 0, mRow, mBitmap.getWidth(), rows);
+            mRow += rows;
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * Collects the strips into a packed ARGB array.
+     */
+    public static class PixelWriter implements StripEncoder {
+
+        private final int[] mPixels;
+        private final int mWidth;
+        private int mRow;
+
+        public PixelWriter(int width, int height) {
+            mPixels = new int[width * height];
+            mWidth = width;
+        }
+
+        public int[] getPixels() {
+            return mPixels;
+        }
+
+        @Override
+        public void writeRows(int[] pixels, int offset, int stride, int rows) {
+            for (int r = 0; r < rows; r++, mRow++) {
+                System.arraycopy(pixels, offset + r * stride, mPixels, mRow * mWidth, mWidth);
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Downscaled Sobel gradient magnitude, orientation and Shi-Tomasi cornerness of an image, one
+ * byte each per pixel, for snapping handles to nearby edges and corners in constant time.
+ */
+public final class GradientField {
+
+    public static final int DEFAULT_SIZE = 512; // px, longest side
+
+    private static final int EDGE_THRESHOLD = 40; // magnitude, 0 - 255
+    private static final int CORNER_THRESHOLD = 32; // cornerness, 0 - 255
+
+    private static final float[] NORMAL_X = new float[256];
+    private static final float[] NORMAL_Y = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            NORMAL_X[i] = (float) Math.cos(Math.PI * i / 256);
+            NORMAL_Y[i] = (float) Math.sin(Math.PI * i / 256);
+        }
+    }
+
+    private final int mWidth, mHeight;
+    private final byte[] mMagnitude;
+    private final byte[] mOrientation; // gradient direction, 0 - 255 over [0, PI)
+    private final byte[] mCorner;
+
+    private GradientField(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mMagnitude = new byte[width * height];
+        mOrientation = new byte[width * height];
+        mCorner = new byte[width * height];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public static GradientField compute(byte[] gray, int width, int height) {
+        GradientField field = new GradientField(width, height);
+        short[] gx = new short[width * height];
+        short[] gy = new short[width * height];
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int i = y * width + x;
+                int tl = gray[i - width - 1] & 0xFF, t = gray[i - width] & 0xFF, tr = gray[i - width + 1] & 0xFF;
+                int l = gray[i - 1] & 0xFF, r = gray[i + 1] & 0xFF;
+                int bl = gray[i + width - 1] & 0xFF, b = gray[i + width] & 0xFF, br = gray[i + width + 1] & 0xFF;
+                int dx = tr + 2 * r + br - tl - 2 * l - bl;
+                int dy = bl + 2 * b + br - tl - 2 * t - tr;
+                gx[i] = (short) dx;
+                gy[i] = (short) dy;
+                field.mMagnitude[i] = (byte) Math.min(255, (Math.abs(dx) + Math.abs(dy)) >> 3);
+                double angle = Math.atan2(dy, dx);
+                if (angle < 0) {
+                    angle += Math.PI;
+                }
+                field.mOrientation[i] = (byte) ((int) (angle / Math.PI * 256) & 0xFF);
+            }
+        }
+
+        // smallest eigenvalue of the 3x3 structure tensor, normalized to the strongest corner
+        float[] corner = new float[width * height];
+        float max = 0;
+        for (int y = 2; y < height - 2; y++) {
+            for (int x = 2; x < width - 2; x++) {
+                float a = 0, b = 0, c = 0;
+                for (int j = -1; j <= 1; j++) {
+                    for (int k = -1; k <= 1; k++) {
+                        int i = (y + j) * width + x + k;
+                        float dx = gx[i], dy = gy[i];
+                        a += dx * dx;
+                        b += dx * dy;
+                        c += dy * dy;
+                    }
+                }
+                float half = (a - c) / 2;
+                float value = (a + c) / 2 - (float) Math.sqrt(half * half + b * b);
+                corner[y * width + x] = value;
+                max = Math.max(max, value);
+            }
+        }
+        if (max > 0) {
+            for (int i = 0; i < corner.length; i++) {
+                field.mCorner[i] = (byte) (int) (corner[i] / max * 255);
+            }
+        }
+        return field;
+    }
+
+    /**
+     * Snaps (x, y), in field pixels spanning [i, i + 1), to the strongest corner within
+     * {@code radius} if {@code corners} is set, else onto the strongest edge, moving across it
+     * only. Writes {@code out}; returns false if nothing was close enough.
+     */
+    public boolean snap(float x, float y, int radius, boolean corners, float[] out) {
+        int cx = (int) x, cy = (int) y;
+        int x0 = Math.max(cx - radius, 0), x1 = Math.min(cx + radius, mWidth - 1);
+        int y0 = Math.max(cy - radius, 0), y1 = Math.min(cy + radius, mHeight - 1);
+        int bestCorner = -1, bestCornerValue = CORNER_THRESHOLD - 1;
+        int bestEdge = -1, bestEdgeValue = EDGE_THRESHOLD - 1;
+        for (int j = y0; j <= y1; j++) {
+            for (int i = x0; i <= x1; i++) {
+                int index = j * mWidth + i;
+                int corner = mCorner[index] & 0xFF;
+                if (corner > bestCornerValue) {
+                    bestCornerValue = corner;
+                    bestCorner = index;
+                }
+                int magnitude = mMagnitude[index] & 0xFF;
+                if (magnitude > bestEdgeValue) {
+                    bestEdgeValue = magnitude;
+                    bestEdge = index;
+                }
+            }
+        }
+        if (corners && bestCorner >= 0) {
+            out[0] = bestCorner % mWidth + 0.5f;
+            out[1] = bestCorner / mWidth + 0.5f;
+            return true;
+        }
+        if (bestEdge < 0) {
+            return false;
+        }
+        int orientation = mOrientation[bestEdge] & 0xFF;
+        float nx = NORMAL_X[orientation], ny = NORMAL_Y[orientation];
+        float distance = (bestEdge % mWidth + 0.5f - x) * nx + (bestEdge / mWidth + 0.5f - y) * ny;
+        out[0] = x + distance * nx;
+        out[1] = y + distance * ny;
+        return true;
+    }
+}
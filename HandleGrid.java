@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+/**
+ * Uniform grid over packed handle positions for touch hit-testing. A lookup only visits the
+ * cells within the catch distance, so it stays cheap for polygons with hundreds of handles.
+ * Rebuilding is a counting sort over the handles and allocates only when the grid grows.
+ */
+public final class HandleGrid {
+
+    private static final int MAX_CELLS_PER_SIDE = 64;
+
+    private float mLeft, mTop;
+    private float mCellSize = 1;
+    private int mColumns, mRows;
+    private int mCount;
+    private int[] mCellStart = new int[1];
+    private int[] mItems = new int[0];
+    private int[] mItemCell = new int[0];
+
+    /**
+     * Indexes {@code count} handles packed as {@code {x0, y0, x1, y1, ...}}. {@code cellSize}
+     * should be about the catch distance.
+     */
+    public void build(float[] handles, int count, float cellSize) {
+        mCount = count;
+        if (count == 0) {
+            mColumns = mRows = 0;
+            return;
+        }
+        float left = handles[0], top = handles[1], right = left, bottom = top;
+        for (int i = 1; i < count; i++) {
+            float x = handles[i * 2];
+            float y = handles[i * 2 + 1];
+            left = Math.min(left, x);
+            right = Math.max(right, x);
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+        }
+        float extent = Math.max(right - left, bottom - top);
+        mCellSize = Math.max(Math.max(cellSize, 1), extent / MAX_CELLS_PER_SIDE);
+        mLeft = left;
+        mTop = top;
+        mColumns = (int) ((right - left) / mCellSize) + 1;
+        mRows = (int) ((bottom - top) / mCellSize) + 1;
+
+        int cells = mColumns * mRows;
+        if (mCellStart.length < cells + 1) {
+            mCellStart = new int[cells + 1];
+        }
+        if (mItems.length < count) {
+            mItems = new int[count];
+            mItemCell = new int[count];
+        }
+        Arrays.fill(mCellStart, 0, cells + 1, 0);
+        for (int i = 0; i < count; i++) {
+            int cell = cellOf(handles[i * 2], handles[i * 2 + 1]);
+            mItemCell[i] = cell;
+            mCellStart[cell]++;
+        }
+        for (int c = 1; c < cells; c++) {
+            mCellStart[c] += mCellStart[c - 1];
+        }
+        mCellStart[cells] = count;
+        // mCellStart[c] is the end of cell c here; filling back to front moves it to the start
+        // and leaves each cell listing its handles in ascending index order
+        for (int i = count - 1; i >= 0; i--) {
+            mItems[--mCellStart[mItemCell[i]]] = i;
+        }
+    }
+
+    /**
+     * Returns the lowest index among the handles within {@code distance} of (x, y), or -1, the
+     * same result as a linear scan in index order.
+     */
+    public int find(float[] handles, float x, float y, float distance) {
+        if (mCount == 0) {
+            return -1;
+        }
+        int c0 = Math.max(0, (int) Math.floor((x - distance - mLeft) / mCellSize));
+        int c1 = Math.min(mColumns - 1, (int) Math.floor((x + distance - mLeft) / mCellSize));
+        int r0 = Math.max(0, (int) Math.floor((y - distance - mTop) / mCellSize));
+        int r1 = Math.min(mRows - 1, (int) Math.floor((y + distance - mTop) / mCellSize));
+        float maxSquared = distance * distance;
+        int best = -1;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * mColumns + c;
+                for (int k = mCellStart[cell], end = mCellStart[cell + 1]; k < end; k++) {
+                    int i = mItems[k];
+                    if (best >= 0 && i > best) {
+                        break;
+                    }
+                    float dx = x - handles[i * 2];
+                    float dy = y - handles[i * 2 + 1];
+                    if (dx * dx + dy * dy < maxSquared) {
+                        best = i;
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int cellOf(float x, float y) {
+        int c = Math.min(mColumns - 1, (int) ((x - mLeft) / mCellSize));
+        int r = Math.min(mRows - 1, (int) ((y - mTop) / mCellSize));
+        return r * mColumns + c;
+    }
+}
@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming baseline JPEG encoder, YCbCr 4:2:0 with the standard Huffman tables. Rows are
+ * buffered until a 16-row band of MCUs is complete, so memory stays at one MCU band. Alpha is
+ * ignored.
+ */
+public class JpegStripEncoder implements StripEncoder {
+
+    private static final int[] ZIGZAG = {
+            0, 1, 5, 6, 14, 15, 27, 28,
+            2, 4, 7, 13, 16, 26, 29, 42,
+            3, 8, 12, 17, 25, 30, 41, 43,
+            9, 11, 18, 24, 31, 40, 44, 53,
+            10, 19, 23, 32, 39, 45, 52, 54,
+            20, 22, 33, 38, 46, 51, 55, 60,
+            21, 34, 37, 47, 50, 56, 59, 61,
+            35, 36, 48, 49, 57, 58, 62, 63};
+
+    private static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+
+    private static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // Huffman code counts per length 1..16 and symbols, ITU T.81 annex K.3
+    private static final int[] DC_LUMINANCE_COUNTS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_COUNTS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+    private static final int[] DC_CHROMINANCE_COUNTS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_CHROMINANCE_COUNTS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    // AAN DCT output scale factors
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    private static final int MCU_SIZE = 16;
+
+    private final OutputStream mOut;
+    private final int mWidth, mHeight;
+    private final int mPaddedWidth;
+    private final int[] mLuminanceQuant = new int[64];
+    private final int[] mChrominanceQuant = new int[64];
+    private final float[] mLuminanceDivisors = new float[64];
+    private final float[] mChrominanceDivisors = new float[64];
+    // code << 8 | length, indexed by symbol
+    private final int[] mDcLuminance, mAcLuminance, mDcChrominance, mAcChrominance;
+
+    // one MCU band at full resolution
+    private final float[] mY, mCb, mCr;
+    private int mBufferedRows;
+    private int mRowsWritten;
+
+    private final float[] mBlock = new float[64];
+    private final int[] mCoefficients = new int[64];
+    private int mDcY, mDcCb, mDcCr;
+
+    private final byte[] mBuffer = new byte[8192];
+    private int mBufferLength;
+    private int mBits, mBitCount;
+
+    /**
+     * @param quality 1 - 100, as for {@code Bitmap.compress}
+     */
+    public JpegStripEncoder(OutputStream out, int width, int height, int quality) throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mPaddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+        mY = new float[MCU_SIZE * mPaddedWidth];
+        mCb = new float[MCU_SIZE * mPaddedWidth];
+        mCr = new float[MCU_SIZE * mPaddedWidth];
+
+        quality = Math.min(Math.max(quality, 1), 100);
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        initQuant(LUMINANCE_QUANT, scale, mLuminanceQuant, mLuminanceDivisors);
+        initQuant(CHROMINANCE_QUANT, scale, mChrominanceQuant, mChrominanceDivisors);
+        mDcLuminance = buildCodes(DC_LUMINANCE_COUNTS, DC_LUMINANCE_VALUES);
+        mAcLuminance = buildCodes(AC_LUMINANCE_COUNTS, AC_LUMINANCE_VALUES);
+        mDcChrominance = buildCodes(DC_CHROMINANCE_COUNTS, DC_CHROMINANCE_VALUES);
+        mAcChrominance = buildCodes(AC_CHROMINANCE_COUNTS, AC_CHROMINANCE_VALUES);
+        writeHeaders();
+    }
+
+    private static void initQuant(int[] base, int scale, int[] quant, float[] divisors) {
+        for (int i = 0; i < 64; i++) {
+            quant[i] = Math.min(Math.max((base[i] * scale + 50) / 100, 1), 255);
+        }
+        for (int row = 0, i = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++, i++) {
+                divisors[i] = (float) (1.0 / (quant[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            }
+        }
+    }
+
+    private static int[] buildCodes(int[] counts, int[] values) {
+        int[] codes = new int[256];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < counts[length - 1]; i++) {
+                codes[values[k++]] = code << 8 | length;
+                code++;
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        for (int r = 0; r < rows && mRowsWritten < mHeight; r++, mRowsWritten++) {
+            int in = offset + r * stride;
+            int out = mBufferedRows * mPaddedWidth;
+            for (int x = 0; x < mPaddedWidth; x++) {
+                int c = pixels[in + Math.min(x, mWidth - 1)];
+                int red = (c >> 16) & 0xFF;
+                int green = (c >> 8) & 0xFF;
+                int blue = c & 0xFF;
+                mY[out + x] = 0.299f * red + 0.587f * green + 0.114f * blue - 128;
+                mCb[out + x] = -0.168736f * red - 0.331264f * green + 0.5f * blue;
+                mCr[out + x] = 0.5f * red - 0.418688f * green - 0.081312f * blue;
+            }
+            if (++mBufferedRows == MCU_SIZE) {
+                encodeBand();
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mBufferedRows > 0) {
+            // repeat the last row to fill the band
+            int last = (mBufferedRows - 1) * mPaddedWidth;
+            for (int row = mBufferedRows; row < MCU_SIZE; row++) {
+                System.arraycopy(mY, last, mY, row * mPaddedWidth, mPaddedWidth);
+                System.arraycopy(mCb, last, mCb, row * mPaddedWidth, mPaddedWidth);
+                System.arraycopy(mCr, last, mCr, row * mPaddedWidth, mPaddedWidth);
+            }
+            encodeBand();
+        }
+        // pad the last byte with 1 bits
+        if (mBitCount > 0) {
+            writeBits(0x7F, 7);
+        }
+        writeByte(0xFF);
+        writeByte(0xD9);
+        mOut.write(mBuffer, 0, mBufferLength);
+        mBufferLength = 0;
+        mOut.flush();
+    }
+
+    private void encodeBand() throws IOException {
+        for (int x = 0; x < mPaddedWidth; x += MCU_SIZE) {
+            for (int block = 0; block < 4; block++) {
+                int start = (block >> 1) * 8 * mPaddedWidth + x + (block & 1) * 8;
+                for (int row = 0; row < 8; row++) {
+                    System.arraycopy(mY, start + row * mPaddedWidth, mBlock, row * 8, 8);
+                }
+                mDcY = encodeBlock(mLuminanceDivisors, mDcY, mDcLuminance, mAcLuminance);
+            }
+            subsample(mCb, x);
+            mDcCb = encodeBlock(mChrominanceDivisors, mDcCb, mDcChrominance, mAcChrominance);
+            subsample(mCr, x);
+            mDcCr = encodeBlock(mChrominanceDivisors, mDcCr, mDcChrominance, mAcChrominance);
+        }
+        mBufferedRows = 0;
+    }
+
+    // 2x2 average of the 16x16 chroma area at column x into mBlock
+    private void subsample(float[] plane, int x) {
+        for (int row = 0; row < 8; row++) {
+            int top = row * 2 * mPaddedWidth + x;
+            int bottom = top + mPaddedWidth;
+            for (int col = 0; col < 8; col++) {
+                int i = col * 2;
+                mBlock[row * 8 + col] = (plane[top + i] + plane[top + i + 1] + plane[bottom + i] + plane[bottom + i + 1]) * 0.25f;
+            }
+        }
+    }
+
+    private int encodeBlock(float[] divisors, int previousDc, int[] dcCodes, int[] acCodes) throws IOException {
+        forwardDct(mBlock);
+        for (int i = 0; i < 64; i++) {
+            mCoefficients[ZIGZAG[i]] = Math.round(mBlock[i] * divisors[i]);
+        }
+
+        int dc = mCoefficients[0];
+        int diff = dc - previousDc;
+        if (diff == 0) {
+            writeCode(dcCodes[0]);
+        } else {
+            int category = category(diff);
+            writeCode(dcCodes[category]);
+            writeBits(bitsOf(diff, category), category);
+        }
+
+        int end = 63;
+        while (end > 0 && mCoefficients[end] == 0) {
+            end--;
+        }
+        int zeros = 0;
+        for (int i = 1; i <= end; i++) {
+            int value = mCoefficients[i];
+            if (value == 0) {
+                zeros++;
+                continue;
+            }
+            while (zeros >= 16) {
+                writeCode(acCodes[0xF0]);
+                zeros -= 16;
+            }
+            int category = category(value);
+            writeCode(acCodes[(zeros << 4) | category]);
+            writeBits(bitsOf(value, category), category);
+            zeros = 0;
+        }
+        if (end != 63) {
+            writeCode(acCodes[0x00]);
+        }
+        return dc;
+    }
+
+    // AAN float DCT in place, rows then columns; output is scaled by AAN_SCALE and 8
+    private static void forwardDct(float[] d) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int k = 0, off = 0; k < 8; k++, off += next) {
+                float d0 = d[off], d1 = d[off + step], d2 = d[off + 2 * step], d3 = d[off + 3 * step];
+                float d4 = d[off + 4 * step], d5 = d[off + 5 * step], d6 = d[off + 6 * step], d7 = d[off + 7 * step];
+                float tmp0 = d0 + d7, tmp7 = d0 - d7;
+                float tmp1 = d1 + d6, tmp6 = d1 - d6;
+                float tmp2 = d2 + d5, tmp5 = d2 - d5;
+                float tmp3 = d3 + d4, tmp4 = d3 - d4;
+
+                float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+                d[off] = tmp10 + tmp11;
+                d[off + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[off + 2 * step] = tmp13 + z1;
+                d[off + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                d[off + 5 * step] = z13 + z2;
+                d[off + 3 * step] = z13 - z2;
+                d[off + step] = z11 + z4;
+                d[off + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private static int bitsOf(int value, int category) {
+        return value > 0 ? value : value + (1 << category) - 1;
+    }
+
+    private void writeCode(int code) throws IOException {
+        writeBits(code >>> 8, code & 0xFF);
+    }
+
+    private void writeBits(int value, int count) throws IOException {
+        mBits = (mBits << count) | (value & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            writeByte(b);
+            if (b == 0xFF) {
+                writeByte(0); // byte stuffing
+            }
+            mBitCount -= 8;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (mBufferLength == mBuffer.length) {
+            mOut.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+        mBuffer[mBufferLength++] = (byte) b;
+    }
+
+    private void writeShort(int v) throws IOException {
+        writeByte(v >> 8);
+        writeByte(v);
+    }
+
+    private void writeHeaders() throws IOException {
+        writeShort(0xFFD8); // SOI
+
+        writeShort(0xFFE0); // APP0, JFIF 1.1, no density, no thumbnail
+        writeShort(16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        writeShort(0x0101);
+        writeByte(0);
+        writeShort(1);
+        writeShort(1);
+        writeShort(0);
+
+        writeShort(0xFFDB); // DQT, tables in zigzag order
+        writeShort(2 + 65 * 2);
+        writeQuant(0, mLuminanceQuant);
+        writeQuant(1, mChrominanceQuant);
+
+        writeShort(0xFFC0); // SOF0
+        writeShort(17);
+        writeByte(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        writeByte(3);
+        writeByte(1); // Y, 2x2 sampling, table 0
+        writeByte(0x22);
+        writeByte(0);
+        writeByte(2); // Cb
+        writeByte(0x11);
+        writeByte(1);
+        writeByte(3); // Cr
+        writeByte(0x11);
+        writeByte(1);
+
+        writeShort(0xFFC4); // DHT
+        writeShort(2 + (17 + 12) * 2 + (17 + 162) * 2);
+        writeHuffman(0x00, DC_LUMINANCE_COUNTS, DC_LUMINANCE_VALUES);
+        writeHuffman(0x10, AC_LUMINANCE_COUNTS, AC_LUMINANCE_VALUES);
+        writeHuffman(0x01, DC_CHROMINANCE_COUNTS, DC_CHROMINANCE_VALUES);
+        writeHuffman(0x11, AC_CHROMINANCE_COUNTS, AC_CHROMINANCE_VALUES);
+
+        writeShort(0xFFDA); // SOS
+        writeShort(12);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x00);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(0);
+        writeByte(0x3F);
+        writeByte(0);
+    }
+
+    private void writeQuant(int id, int[] quant) throws IOException {
+        writeByte(id);
+        int[] zigzag = new int[64];
+        for (int i = 0; i < 64; i++) {
+            zigzag[ZIGZAG[i]] = quant[i];
+        }
+        for (int i = 0; i < 64; i++) {
+            writeByte(zigzag[i]);
+        }
+    }
+
+    private void writeHuffman(int id, int[] counts, int[] values) throws IOException {
+        writeByte(id);
+        for (int count : counts) {
+            writeByte(count);
+        }
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+}
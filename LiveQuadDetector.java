@@ -0,0 +1,223 @@
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects document quads on camera preview frames. Frames are submitted as the luma (Y) plane
+ * of an NV21 or YUV_420_888 image and downsampled straight into the detector's input, so the
+ * plane itself is never copied. Detection runs on a dedicated thread that only ever works on
+ * the newest frame; a frame still waiting when a newer one arrives is dropped.
+ */
+public class LiveQuadDetector {
+
+    public interface Callback {
+        /**
+         * Called on the main thread for every detected frame. {@code quad} is {lt, rt, rb, lb}
+         * in frame pixels, or null if no document was found; {@code latencyMillis} is the time
+         * from {@link #submitFrame} to the end of detection.
+         */
+        void onQuadDetected(float[] quad, int frameWidth, int frameHeight, long latencyMillis);
+    }
+
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final QuadDetector mDetector = new QuadDetector();
+    private final Object mLock = new Object();
+    private Thread mThread;
+    private boolean mReleased;
+
+    // guarded by mLock
+    private byte[] mPending = new byte[0];
+    private byte[] mWorking = new byte[0];
+    private boolean mHasPending;
+    private int mPendingWidth, mPendingHeight, mPendingFrameWidth, mPendingFrameHeight;
+    private long mPendingTime;
+    private long mFrames, mDroppedFrames, mLatencySum, mLastLatency;
+
+    public LiveQuadDetector(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Queues the luma plane of a frame for detection. The plane is only read during this call,
+     * so the camera buffer can be returned right after.
+     */
+    public void submitFrame(byte[] luma, int width, int height, int rowStride) {
+        submitFrame(luma, null, width, height, rowStride);
+    }
+
+    public void submitFrame(ByteBuffer luma, int width, int height, int rowStride) {
+        submitFrame(null, luma, width, height, rowStride);
+    }
+
+    private void submitFrame(byte[] array, ByteBuffer buffer, int width, int height, int rowStride) {
+        long time = System.nanoTime();
+        int step = Math.max(1, (Math.max(width, height) + QuadDetector.DEFAULT_DETECT_SIZE - 1)
+                / QuadDetector.DEFAULT_DETECT_SIZE);
+        int sw = width / step;
+        int sh = height / step;
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            if (mPending.length < sw * sh) {
+                mPending = new byte[sw * sh];
+            }
+            if (array != null) {
+                downsample(array, rowStride, step, mPending, sw, sh);
+            } else {
+                downsample(buffer, rowStride, step, mPending, sw, sh);
+            }
+            if (mHasPending) {
+                mDroppedFrames++;
+            }
+            mHasPending = true;
+            mPendingWidth = sw;
+            mPendingHeight = sh;
+            mPendingFrameWidth = width;
+            mPendingFrameHeight = height;
+            mPendingTime = time;
+            if (mThread == null) {
+                mThread = new Thread(new Worker(), "quad-live");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mLock.notify();
+        }
+    }
+
+    // averages the top-left 2x2 pixels of every step x step block
+    private static void downsample(byte[] luma, int rowStride, int step, byte[] out, int sw, int sh) {
+        int dy = step > 1 ? rowStride : 0;
+        int dx = step > 1 ? 1 : 0;
+        for (int y = 0; y < sh; y++) {
+            int row = y * step * rowStride;
+            int o = y * sw;
+            for (int x = 0; x < sw; x++, row += step) {
+                out[o + x] = (byte) (((luma[row] & 0xFF) + (luma[row + dx] & 0xFF)
+                        + (luma[row + dy] & 0xFF) + (luma[row + dy + dx] & 0xFF)) >> 2);
+            }
+        }
+    }
+
+    private static void downsample(ByteBuffer luma, int rowStride, int step, byte[] out, int sw, int sh) {
+        int base = luma.position();
+        int dy = step > 1 ? rowStride : 0;
+        int dx = step > 1 ? 1 : 0;
+        for (int y = 0; y < sh; y++) {
+            int row = base + y * step * rowStride;
+            int o = y * sw;
+            for (int x = 0; x < sw; x++, row += step) {
+                out[o + x] = (byte) (((luma.get(row) & 0xFF) + (luma.get(row + dx) & 0xFF)
+                        + (luma.get(row + dy) & 0xFF) + (luma.get(row + dy + dx) & 0xFF)) >> 2);
+            }
+        }
+    }
+
+    /**
+     * Frames replaced by a newer one before detection got to them.
+     */
+    public long getDroppedFrames() {
+        synchronized (mLock) {
+            return mDroppedFrames;
+        }
+    }
+
+    public long getDetectedFrames() {
+        synchronized (mLock) {
+            return mFrames;
+        }
+    }
+
+    public long getLastLatency() {
+        synchronized (mLock) {
+            return mLastLatency;
+        }
+    }
+
+    public float getAverageLatency() {
+        synchronized (mLock) {
+            return mFrames == 0 ? 0 : (float) mLatencySum / mFrames;
+        }
+    }
+
+    /**
+     * Stops the worker thread. Frames submitted afterwards are ignored.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notify();
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                int width, height;
+                final int frameWidth, frameHeight;
+                long time;
+                byte[] gray;
+                synchronized (mLock) {
+                    while (!mHasPending && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mReleased) {
+                        return;
+                    }
+                    gray = mPending;
+                    mPending = mWorking;
+                    mWorking = gray;
+                    mHasPending = false;
+                    width = mPendingWidth;
+                    height = mPendingHeight;
+                    frameWidth = mPendingFrameWidth;
+                    frameHeight = mPendingFrameHeight;
+                    time = mPendingTime;
+                }
+                float[] quad;
+                try {
+                    quad = mDetector.detect(gray, width, height);
+                } catch (RuntimeException e) {
+                    Log.w("TAG", "live quad detection failed", e);
+                    quad = null;
+                }
+                if (quad != null) {
+                    for (int i = 0; i < 4; i++) {
+                        quad[i * 2] = Math.min(Math.max(quad[i * 2] * frameWidth / width, 0), frameWidth);
+                        quad[i * 2 + 1] = Math.min(Math.max(quad[i * 2 + 1] * frameHeight / height, 0), frameHeight);
+                    }
+                }
+                final long latency = (System.nanoTime() - time) / 1000000;
+                synchronized (mLock) {
+                    mFrames++;
+                    mLatencySum += latency;
+                    mLastLatency = latency;
+                }
+                final float[] result = quad;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCallback != null && !isReleased()) {
+                            mCallback.onQuadDetected(result, frameWidth, frameHeight, latency);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean isReleased() {
+        synchronized (mLock) {
+            return mReleased;
+        }
+    }
+}
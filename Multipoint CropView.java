@@ -8,6 +8,7 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Picture;
 import android.graphics.Point;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
@@ -18,12 +19,33 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.OvalShape;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 
 import androidx.appcompat.widget.AppCompatImageView;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.scanera.scan.R;
 
 public class CropImageView extends AppCompatImageView {
@@ -33,6 +55,19 @@ public class CropImageView extends AppCompatImageView {
     private static final float MAGNIFIER_CROSS_LINE_WIDTH = 0.8f; //dp
     private static final float MAGNIFIER_CROSS_LINE_LENGTH = 3; //dp
     private static final float MAGNIFIER_BORDER_WIDTH = 1; //dp
+    private static final float DEFAULT_MAGNIFIER_ZOOM = 1f; // view px per image px
+    private static final float MAX_PREDICTION_DISTANCE = 24; //dp
+    private static final float EDGE_SNAP_DISTANCE = 12; //dp
+    private static final int MAX_SNAP_RADIUS = 8; // gradient field px
+    private static final float DEFAULT_LIVE_SMOOTHING = 0.4f; // weight of the newest quad
+    private static final float LIVE_JUMP_DISTANCE = 0.1f; // of the frame diagonal
+    private static final int LIVE_MAX_MISSES = 8; // frames
+
+    private static final int CANCEL_CHECK_ROWS = 64;
+    private static final int BASE_LEVEL_SIZE = 2048; // px, longest side shown for a tiled source
+    private static final int DEFAULT_ENCODE_QUALITY = 90;
+    private static final int PREVIEW_SOURCE_SIZE = 1024; // px
+    private static final int DEFAULT_PREVIEW_SIZE = 256; // px
 
     private static final int DEFAULT_LINE_COLOR = 0xFF00FFFF;
     private static final float DEFAULT_LINE_WIDTH = 1; //dp
@@ -52,17 +87,123 @@ public class CropImageView extends AppCompatImageView {
     private Paint mMagnifierCrossPaint;
     private float mScaleX, mScaleY;
     private int mActWidth, mActHeight, mActLeft, mActTop;
-    private Point mDraggingPoint = null;
+    private int mDraggingIndex = -1; // [0, n) vertices, [n, 2n) edge mid points
     private float mDensity;
     private ShapeDrawable mMagnifierDrawable;
 
     private float[] mMatrixValue = new float[9];
     private Xfermode mMaskXfermode = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
     private Path mPointLinePath = new Path();
+    private Path mMaskPath = new Path();
+    private boolean mGeometryDirty = true;
+    private boolean mViewPointsValid;
+    private boolean mSimplePolygon, mSimplePolygonDirty = true;
+    private float[] mViewPoints = new float[16]; // n vertices, then n edge mid points
+    private float[] mViewPointsSource = new float[8];
+    private final HandleGrid mHandleGrid = new HandleGrid();
+    private float mPointRadius;
+    private float mTouchCatchDistance;
+    private float mMagnifierBorderWidth;
+    private float mMagnifierCrossLength;
+    private float mMaxPredictionDistance;
+    private float mLastTouchX, mLastTouchY;
+    private long mLastTouchTime;
+    private long mTouchFrames, mTouchSamples, mTouchLatencySum, mTouchLatencyMax;
     private Matrix mMagnifierMatrix = new Matrix();
+    private Bitmap mMagnifierBitmap;
+    private final Rect mDirtyRect = new Rect();
+    private final int[] mDragBounds = new int[4];
+    private float[] mSavedCropPoints = new float[8];
+    private float[] mEdgeMidPoints = new float[8];
+    private int[] mMagnifierPixels;
+    private int[] mMagnifierTile; // last decoded full-resolution tile, twice the magnifier size
+    private int mMagnifierTileLeft, mMagnifierTileTop, mMagnifierTileSize;
+    private int[] mMagnifierBasePixels;
+    private boolean mMagnifierTileRunning; // one tile decode at a time, it owns the fields below
+    private TiledImageSource mMagnifierJobSource;
+    private int mMagnifierJobLeft, mMagnifierJobTop, mMagnifierJobSize, mMagnifierJobGeneration;
+    private int[] mMagnifierJobPixels;
+    private Bitmap mMagnifierJobBitmap; // decoded into again and again
+    private TiledImageSource mImageSource;
+    private boolean mEdgeSnap;
+    private GradientField mGradientField;
+    private float mEdgeSnapDistance;
+    private final float[] mSnapPoint = new float[2];
+    private int mLiveFrameWidth, mLiveFrameHeight;
+    private int mLiveMisses;
+    private RenderStats mRenderStats;
+    private OnRenderStatsListener mRenderStatsListener;
+    private int mRenderStatsInterval, mRenderStatsFrames;
+    private final Picture mStaticGuideLines = new Picture();
+    private final Picture mStaticPoints = new Picture();
+    private boolean mStaticOverlayDirty = true;
+    private int mStaticOverlayIndex = -1;
+    private float[] mStaticOverlayPoints = new float[8];
+    private CropBufferPool mBufferPool;
+    private final Map<Bitmap, int[]> mBitmapUsers = new HashMap<>(); // background tasks reading each bitmap
+    private final Set<Bitmap> mRetiredBitmaps = new HashSet<>(); // replaced, pooled once no task reads them
+    private CropResultCache mCropResultCache;
+    private RemapTable mRemapTable;
+    private int mMagnifierSampleX, mMagnifierSampleY;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private CropTask mPendingCrop;
+    private int mImageGeneration;
+    private boolean mCropPointsEdited;
+    private Executor mDetectExecutor;
+    private static ExecutorService sDefaultExecutor;
+
+    private OnCropPreviewListener mPreviewListener;
+    private Executor mPreviewExecutor;
+    private Bitmap mPreviewBitmap;
+    private boolean mPreviewScheduled;
+    private boolean mPreviewRunning; // one preview job at a time, it owns the fields below
+    private final float[] mPreviewQuad = new float[8]; // crop points the job warps
+    private Bitmap mPreviewJobBitmap;
+    private int mPreviewJobGeneration, mPreviewJobImageWidth, mPreviewJobSize;
+    private int mPreviewWidth, mPreviewHeight;
+    private boolean mPreviewFailed;
+    private int[] mPreviewSource;
+    private int mPreviewSourceWidth, mPreviewSourceHeight;
+    private int mPreviewSourceGeneration;
+    private float mPreviewSourceScale;
+    private int[] mPreviewPixels;
+    private final float[] mPreviewSourceQuad = new float[8];
+    private final double[] mPreviewTransform = new double[9];
+    private final Runnable mPreviewRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPreviewScheduled = false;
+            updatePreview();
+        }
+    };
+    private final Runnable mPreviewJob = new Runnable() {
+        @Override
+        public void run() {
+            computePreview();
+            mMainHandler.post(mPreviewDelivery);
+        }
+    };
+    private final Runnable mPreviewDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliverPreview();
+        }
+    };
+    private final Runnable mMagnifierTileJob = new Runnable() {
+        @Override
+        public void run() {
+            decodeMagnifierTile();
+            mMainHandler.post(mMagnifierTileDelivery);
+        }
+    };
+    private final Runnable mMagnifierTileDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliverMagnifierTile();
+        }
+    };
 
-    Point[] mCropPoints; // 0->LeftTop, 1->RightTop， 2->RightBottom, 3->LeftBottom
-    Point[] mEdgeMidPoints;
+    float[] mCropPoints; // packed x, y: 0->LeftTop, 1->RightTop， 2->RightBottom, 3->LeftBottom, or any polygon
     float mLineWidth;
     int mPointColor;
     float mPointWidth;
@@ -73,28 +214,46 @@ public class CropImageView extends AppCompatImageView {
     int mMagnifierCrossColor = DEFAULT_MAGNIFIER_CROSS_COLOR;
     int mGuideLineColor = DEFAULT_GUIDE_LINE_COLOR;
     int mMaskAlpha = DEFAULT_MASK_ALPHA; //0 - 255
+    int mMaskMode = MASK_MODE_LAYER;
     boolean mShowGuideLine = true;
     boolean mShowMagnifier = true;
+    float mMagnifierZoom = DEFAULT_MAGNIFIER_ZOOM;
     boolean mShowEdgeMidPoint = true;
 
     boolean mDragLimit = true;
+    boolean mAutoDetect = true;
+    int mCropParallelism = ParallelBands.getMaxParallelism();
+    int mCropQuality = PerspectiveWarp.QUALITY_BILINEAR;
+    int mPreviewSize = DEFAULT_PREVIEW_SIZE;
+    float mTouchPrediction; // ms
+    float mLiveSmoothing = DEFAULT_LIVE_SMOOTHING;
+    int mScanEnhancement = ScanEnhancer.MODE_NONE;
+
+    public static final int MASK_MODE_LAYER = 0;
+    public static final int MASK_MODE_PATH = 1;
+
+    public interface OnCropListener {
+        /**
+         * Called on the main thread with the cropped bitmap, or null if the points were invalid
+         * or the crop failed. Never called for cancelled or superseded requests.
+         */
+        void onCropFinished(Bitmap bitmap);
+    }
 
-    enum DragPointType {
-        LEFT_TOP,
-        RIGHT_TOP,
-        RIGHT_BOTTOM,
-        LEFT_BOTTOM,
-        TOP,
-        RIGHT,
-        BOTTOM,
-        LEFT;
-
-        public static boolean isEdgePoint(DragPointType type) {
-            return type == TOP || type == RIGHT || type == BOTTOM || type == LEFT;
-        }
+    public interface OnCropPreviewListener extends OnCropListener {
+        /**
+         * Called on the main thread at most once per frame while a point is dragged. The bitmap
+         * is reused and only valid until the next call.
+         */
+        void onCropPreview(Bitmap preview);
     }
 
-    private final static int P_LT = 0, P_RT = 1, P_RB = 2, P_LB = 3;
+    public interface OnRenderStatsListener {
+        /**
+         * Called on the main thread after every few drawn frames with the timings so far.
+         */
+        void onRenderStats(RenderStats.Snapshot snapshot);
+    }
 
     public CropImageView(Context context) {
         this(context, null);
@@ -111,6 +270,12 @@ public class CropImageView extends AppCompatImageView {
             throw new RuntimeException("Image in CropImageView must be in center");
         }
         mDensity = getResources().getDisplayMetrics().density;
+        mPointRadius = dp2px(POINT_RADIUS);
+        mTouchCatchDistance = dp2px(TOUCH_POINT_CATCH_DISTANCE);
+        mMagnifierBorderWidth = dp2px(MAGNIFIER_BORDER_WIDTH);
+        mMagnifierCrossLength = dp2px(MAGNIFIER_CROSS_LINE_LENGTH);
+        mMaxPredictionDistance = dp2px(MAX_PREDICTION_DISTANCE);
+        mEdgeSnapDistance = dp2px(EDGE_SNAP_DISTANCE);
         initAttrs(context, attrs);
         initPaints();
     }
@@ -139,25 +304,25 @@ public class CropImageView extends AppCompatImageView {
             Log.w("TAG", "should call after set drawable");
             return;
         }
-        if (!checkPoints(cropPoints)) {
-            setFullImgCrop();
-        } else {
-            this.mCropPoints = cropPoints;
-            invalidate();
-        }
+        setCropPoints(checkPoints(cropPoints) ? toQuad(cropPoints) : null);
     }
 
-    public void setEdgeMidPoints() {
-        if (mEdgeMidPoints == null) {
-            mEdgeMidPoints = new Point[4];
-            for (int i = 0; i < mEdgeMidPoints.length; i++) {
-                mEdgeMidPoints[i] = new Point();
-            }
+    /**
+     * Sets the crop points from packed image coordinates {@code {x0, y0, x1, y1, ...}}; the
+     * array is copied. Four points are cropped with a perspective warp, any other count of at
+     * least three as a polygon masked out of its bounding box.
+     */
+    public void setCropPoints(float[] cropPoints) {
+        if (getDrawable() == null) {
+            Log.w("TAG", "should call after set drawable");
+            return;
         }
-        int len = mCropPoints.length;
-        for (int i = 0; i < len; i++) {
-            mEdgeMidPoints[i].set(mCropPoints[i].x + (mCropPoints[(i + 1) % len].x - mCropPoints[i].x) / 2,
-                    mCropPoints[i].y + (mCropPoints[(i + 1) % len].y - mCropPoints[i].y) / 2);
+        if (!isValidPoints(cropPoints)) {
+            setFullImgCrop();
+        } else {
+            this.mCropPoints = cropPoints.clone();
+            mCropPointsEdited = true;
+            invalidate();
         }
     }
 
@@ -173,26 +338,351 @@ public class CropImageView extends AppCompatImageView {
 
     @Override
     public void setImageBitmap(Bitmap bm) {
+        cancelCrop();
+        mImageGeneration++;
+        Bitmap previous = getBitmap();
         super.setImageBitmap(bm);
-        mMagnifierDrawable = null;
+        mRetiredBitmaps.remove(bm);
+        if (mBufferPool != null && previous != bm && mBufferPool.isPooled(previous)) {
+            // detection, snapping, crops and previews may still read it
+            if (mBitmapUsers.containsKey(previous)) {
+                mRetiredBitmaps.add(previous);
+            } else {
+                mBufferPool.putBitmap(previous);
+            }
+        }
+        // the magnifier buffers don't depend on the image, only what was sampled into them
+        mMagnifierSampleX = Integer.MIN_VALUE;
+        if (mEdgeSnap && bm != null) {
+            computeGradientField(bm);
+        }
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        mGeometryDirty = true;
+        mImageSource = null;
+        mMagnifierTile = null;
+        mGradientField = null;
+        mLiveFrameWidth = 0;
+        mLiveFrameHeight = 0;
+    }
+
+    /**
+     * Shows a downsampled base level of {@code source} instead of the whole image. Crop points
+     * stay in full-resolution coordinates, and the magnifier and crops read full-resolution
+     * pixels from the source. The caller keeps ownership of the source.
+     */
+    public void setImageSource(TiledImageSource source) {
+        Bitmap base = source == null ? null : source.decodeBase(source.getSampleSize(BASE_LEVEL_SIZE));
+        setImageBitmap(base);
+        mImageSource = base == null ? null : source;
+    }
+
+    public TiledImageSource getImageSource() {
+        return mImageSource;
+    }
+
+    /**
+     * Size of the image the crop points refer to: the full-resolution source or the drawable.
+     */
+    public int getImageWidth() {
+        if (mImageSource != null) {
+            return mImageSource.getWidth();
+        }
+        Drawable drawable = getDrawable();
+        return drawable == null ? mLiveFrameWidth : drawable.getIntrinsicWidth();
+    }
+
+    public int getImageHeight() {
+        if (mImageSource != null) {
+            return mImageSource.getHeight();
+        }
+        Drawable drawable = getDrawable();
+        return drawable == null ? mLiveFrameHeight : drawable.getIntrinsicHeight();
+    }
+
+    /**
+     * Shows {@code quad}, detected on a {@code frameWidth} x {@code frameHeight} camera frame,
+     * over a preview laid out centred inside this view. No image may be set. Consecutive quads
+     * are blended to keep the overlay from jittering, large jumps are taken at once, and the
+     * overlay is hidden after a few frames without a quad. The points cannot be dragged.
+     *
+     * @see LiveQuadDetector
+     */
+    public void setLiveQuad(float[] quad, int frameWidth, int frameHeight) {
+        if (getDrawable() != null) {
+            Log.w("TAG", "live quads need a view without image");
+            return;
+        }
+        if (frameWidth != mLiveFrameWidth || frameHeight != mLiveFrameHeight) {
+            mLiveFrameWidth = frameWidth;
+            mLiveFrameHeight = frameHeight;
+            mGeometryDirty = true;
+            mCropPoints = null;
+        }
+        if (quad == null) {
+            if (mCropPoints != null && ++mLiveMisses > LIVE_MAX_MISSES) {
+                mCropPoints = null;
+                invalidate();
+            }
+            return;
+        }
+        mLiveMisses = 0;
+        if (mCropPoints == null || mCropPoints.length != 8) {
+            mCropPoints = quad.clone();
+            invalidate();
+            return;
+        }
+        float jump = LIVE_JUMP_DISTANCE * (float) Math.sqrt((double) frameWidth * frameWidth + (double) frameHeight * frameHeight);
+        float weight = mLiveSmoothing;
+        for (int i = 0; i < 8; i += 2) {
+            if (getPointsDistance(mCropPoints[i], mCropPoints[i + 1], quad[i], quad[i + 1]) > jump) {
+                weight = 1;
+                break;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            mCropPoints[i] += (quad[i] - mCropPoints[i]) * weight;
+        }
+        invalidate();
+    }
+
+    /**
+     * Weight of the newest quad in {@link #setLiveQuad}, from 0 (frozen until the page jumps) to
+     * 1 (no smoothing).
+     */
+    public void setLiveSmoothing(float smoothing) {
+        this.mLiveSmoothing = Math.min(Math.max(smoothing, 0f), 1f);
+    }
+
+    private boolean isLivePreview() {
+        return getDrawable() == null && mLiveFrameWidth > 0;
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        super.setImageResource(resId);
+        mGeometryDirty = true;
+        mGradientField = null;
+    }
+
+    @Override
+    public void setImageURI(Uri uri) {
+        super.setImageURI(uri);
+        mGeometryDirty = true;
+        mGradientField = null;
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        mGeometryDirty = true;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        mGeometryDirty = true;
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        if (changed) {
+            mGeometryDirty = true;
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mGeometryDirty = true;
+        releaseMagnifier();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelCrop();
+        super.onDetachedFromWindow();
     }
 
     public void setImageToCrop(Bitmap bmp) {
         setImageBitmap(bmp);
-        setCropPoints(new Point[4]);
+        setFullImgCrop();
+        if (mAutoDetect && bmp != null) {
+            detectCropPoints(bmp);
+        }
+    }
+
+    public void setImageToCrop(TiledImageSource source) {
+        setImageSource(source);
+        setFullImgCrop();
+        Bitmap base = getBitmap();
+        if (mAutoDetect && mImageSource != null && base != null) {
+            detectCropPoints(base);
+        }
+    }
+
+    public void setAutoDetect(boolean autoDetect) {
+        this.mAutoDetect = autoDetect;
+    }
+
+    public void setDetectExecutor(Executor executor) {
+        this.mDetectExecutor = executor;
+    }
+
+    private void detectCropPoints(final Bitmap bmp) {
+        final int generation = mImageGeneration;
+        final float scaleX = (float) getImageWidth() / bmp.getWidth();
+        final float scaleY = (float) getImageHeight() / bmp.getHeight();
+        mCropPointsEdited = false;
+        retainBitmap(bmp);
+        Executor executor = mDetectExecutor != null ? mDetectExecutor : getDefaultExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final float[] points;
+                try {
+                    points = detectQuad(bmp);
+                } catch (RuntimeException e) {
+                    Log.w("TAG", "quad detection failed", e);
+                    return;
+                } finally {
+                    postReleaseBitmap(bmp);
+                }
+                if (points == null) {
+                    return;
+                }
+                for (int i = 0; i < points.length; i += 2) {
+                    points[i] *= scaleX;
+                    points[i + 1] *= scaleY;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mImageGeneration && !mCropPointsEdited && mDraggingIndex < 0) {
+                            mCropPoints = points;
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static float[] detectQuad(Bitmap bmp) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        float scale = Math.min(1f, (float) QuadDetector.DEFAULT_DETECT_SIZE / Math.max(width, height));
+        int sw = Math.max(1, Math.round(width * scale));
+        int sh = Math.max(1, Math.round(height * scale));
+        Bitmap scaled = scale < 1f ? Bitmap.createScaledBitmap(bmp, sw, sh, true) : bmp;
+        int[] pixels = new int[sw * sh];
+        scaled.getPixels(pixels, 0, sw, 0, 0, sw, sh);
+        if (scaled != bmp) {
+            scaled.recycle();
+        }
+        float[] quad = new QuadDetector().detect(QuadDetector.toGray(pixels, new byte[sw * sh]), sw, sh);
+        if (quad == null) {
+            return null;
+        }
+        for (int i = 0; i < 4; i++) {
+            quad[i * 2] = Math.min(Math.max(quad[i * 2] * width / sw, 0), width);
+            quad[i * 2 + 1] = Math.min(Math.max(quad[i * 2 + 1] * height / sh, 0), height);
+        }
+        return quad;
+    }
+
+    private void computeGradientField(final Bitmap bmp) {
+        final int generation = mImageGeneration;
+        retainBitmap(bmp);
+        Executor executor = mDetectExecutor != null ? mDetectExecutor : getDefaultExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GradientField field;
+                try {
+                    field = createGradientField(bmp);
+                } catch (RuntimeException e) {
+                    Log.w("TAG", "gradient field failed", e);
+                    return;
+                } finally {
+                    postReleaseBitmap(bmp);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mImageGeneration && mEdgeSnap && getBitmap() == bmp) {
+                            mGradientField = field;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static GradientField createGradientField(Bitmap bmp) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        float scale = Math.min(1f, (float) GradientField.DEFAULT_SIZE / Math.max(width, height));
+        int sw = Math.max(1, Math.round(width * scale));
+        int sh = Math.max(1, Math.round(height * scale));
+        Bitmap scaled = scale < 1f ? Bitmap.createScaledBitmap(bmp, sw, sh, true) : bmp;
+        int[] pixels = new int[sw * sh];
+        scaled.getPixels(pixels, 0, sw, 0, 0, sw, sh);
+        if (scaled != bmp) {
+            scaled.recycle();
+        }
+        return GradientField.compute(QuadDetector.toGray(pixels, new byte[sw * sh]), sw, sh);
     }
 
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CropImageView");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
 
+
+    /**
+     * Returns the crop points rounded to whole pixels. The array is a copy, changing it does not
+     * move the points.
+     */
     public Point[] getCropPoints() {
-        return mCropPoints;
+        if (mCropPoints == null) {
+            return null;
+        }
+        Point[] points = new Point[getPointCount()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(Math.round(mCropPoints[i * 2]), Math.round(mCropPoints[i * 2 + 1]));
+        }
+        return points;
+    }
+
+    /**
+     * Returns a copy of the packed sub-pixel crop points {@code {x0, y0, x1, y1, ...}}.
+     */
+    public float[] getCropPointsFloat() {
+        return mCropPoints == null ? null : mCropPoints.clone();
     }
 
     public void setPointFillColor(int pointFillColor) {
         this.mPointFillColor = pointFillColor;
+        mStaticOverlayDirty = true;
     }
 
     public void setPointFillAlpha(int pointFillAlpha) {
         this.mPointFillAlpha = pointFillAlpha;
+        mStaticOverlayDirty = true;
     }
 
     public void setMaskAlpha(int maskAlpha) {
@@ -201,21 +691,35 @@ public class CropImageView extends AppCompatImageView {
         invalidate();
     }
 
+    /**
+     * {@link #MASK_MODE_LAYER} punches the crop area out of an offscreen layer,
+     * {@link #MASK_MODE_PATH} fills the image rect minus the crop area directly, without a layer.
+     * Self-intersecting crop points always use the layer, so both modes look the same.
+     */
+    public void setMaskMode(int maskMode) {
+        this.mMaskMode = maskMode;
+        invalidate();
+    }
+
     public void setShowGuideLine(boolean showGuideLine) {
         this.mShowGuideLine = showGuideLine;
+        mStaticOverlayDirty = true;
         invalidate();
     }
 
     public void setGuideLineColor(int guideLineColor) {
         this.mGuideLineColor = guideLineColor;
+        mStaticOverlayDirty = true;
     }
 
     public void setGuideLineWidth(float guideLineWidth) {
         this.mGuideLineWidth = guideLineWidth;
+        mStaticOverlayDirty = true;
     }
 
     public void setLineColor(int lineColor) {
         this.mLineColor = lineColor;
+        mStaticOverlayDirty = true;
         invalidate();
     }
 
@@ -225,16 +729,19 @@ public class CropImageView extends AppCompatImageView {
 
     public void setLineWidth(int lineWidth) {
         this.mLineWidth = lineWidth;
+        mStaticOverlayDirty = true;
         invalidate();
     }
 
     public void setPointColor(int pointColor) {
         this.mPointColor = pointColor;
+        mStaticOverlayDirty = true;
         invalidate();
     }
 
     public void setPointWidth(float pointWidth) {
         this.mPointWidth = pointWidth;
+        mStaticOverlayDirty = true;
         invalidate();
     }
 
@@ -243,11 +750,263 @@ public class CropImageView extends AppCompatImageView {
         this.mShowMagnifier = showMagnifier;
     }
 
+    public void setMagnifierZoom(float zoom) {
+        this.mMagnifierZoom = Math.max(0.1f, zoom);
+        releaseMagnifier();
+    }
+
 
     public void setDragLimit(boolean dragLimit) {
         this.mDragLimit = dragLimit;
     }
 
+    /**
+     * Moves the dragged handle {@code millis} ahead along the finger's recent velocity, capped to
+     * a short distance, to hide input latency. The handle settles on the finger when it lifts.
+     * 0 (the default) disables prediction.
+     */
+    public void setTouchPrediction(float millis) {
+        this.mTouchPrediction = Math.max(0, millis);
+    }
+
+    /**
+     * Average time in ms from a move sample being taken to this view handling it.
+     */
+    public float getAverageTouchLatency() {
+        return mTouchFrames == 0 ? 0 : (float) mTouchLatencySum / mTouchFrames;
+    }
+
+    public long getMaxTouchLatency() {
+        return mTouchLatencyMax;
+    }
+
+    /**
+     * Average number of touch samples, historical ones included, batched into one move event.
+     */
+    public float getAverageTouchSamplesPerFrame() {
+        return mTouchFrames == 0 ? 0 : (float) mTouchSamples / mTouchFrames;
+    }
+
+    public void resetTouchStats() {
+        mTouchFrames = 0;
+        mTouchSamples = 0;
+        mTouchLatencySum = 0;
+        mTouchLatencyMax = 0;
+    }
+
+
+    /**
+     * Snaps dragged vertices to the strongest document corner or edge near the finger. The
+     * gradient field this needs is computed in the background once per image, so snapping
+     * starts shortly after the image is set.
+     */
+    public void setEdgeSnap(boolean edgeSnap) {
+        this.mEdgeSnap = edgeSnap;
+        if (!edgeSnap) {
+            mGradientField = null;
+        } else if (mGradientField == null && getBitmap() != null) {
+            computeGradientField(getBitmap());
+        }
+    }
+
+    public boolean isEdgeSnap() {
+        return mEdgeSnap;
+    }
+
+
+    /**
+     * Times every overlay draw stage and touch dispatch into {@link RenderStats} histograms.
+     * Disabled, this costs a field read per frame.
+     */
+    public void setRenderStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mRenderStats = null;
+            mRenderStatsListener = null;
+        } else if (mRenderStats == null) {
+            mRenderStats = new RenderStats();
+        }
+    }
+
+    /**
+     * Enables render stats and reports them to {@code listener} every {@code frames} drawn
+     * frames. A null listener stops the reports but keeps recording.
+     */
+    public void setOnRenderStatsListener(OnRenderStatsListener listener, int frames) {
+        if (listener != null) {
+            setRenderStatsEnabled(true);
+        }
+        this.mRenderStatsListener = listener;
+        this.mRenderStatsInterval = Math.max(1, frames);
+        this.mRenderStatsFrames = 0;
+    }
+
+    /**
+     * Copy of the timings recorded so far, or null if render stats are disabled.
+     */
+    public RenderStats.Snapshot getRenderStats() {
+        return mRenderStats == null ? null : mRenderStats.snapshot();
+    }
+
+    public void resetRenderStats() {
+        if (mRenderStats != null) {
+            mRenderStats.reset();
+        }
+    }
+
+
+    /**
+     * Reuses the source, magnifier and crop buffers through {@code pool} from page to page.
+     * Images decoded with {@link CropBufferPool#decodeFile(String)} go back to the pool when
+     * the view moves on to another image. Crops come from the pool too; hand them back with
+     * {@link CropBufferPool#putBitmap(Bitmap)} once they are saved, unless they are also kept
+     * in a {@link #setCropResultCache(CropResultCache) result cache}. Null (the default)
+     * allocates every buffer.
+     */
+    public void setBufferPool(CropBufferPool pool) {
+        this.mBufferPool = pool;
+    }
+
+    public CropBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Returns repeated crops of the same image and points from {@code cache} instead of warping
+     * again. Cached bitmaps are shared between calls, so callers must not modify, recycle or
+     * pool them. Null (the default) disables caching.
+     */
+    public void setCropResultCache(CropResultCache cache) {
+        this.mCropResultCache = cache;
+    }
+
+    public CropResultCache getCropResultCache() {
+        return mCropResultCache;
+    }
+
+    /**
+     * Crops quads through {@code table} whenever it was made for the same quad, bitmap size
+     * and {@link #setCropQuality(int) quality}, for setups that crop the same quad from every
+     * image. Other crops, and crops from a tiled source, warp as usual.
+     *
+     * @see RemapTable#create(float[], int, int, int, int)
+     * @see RemapTable#map(java.io.File)
+     */
+    public void setRemapTable(RemapTable table) {
+        this.mRemapTable = table;
+    }
+
+    public RemapTable getRemapTable() {
+        return mRemapTable;
+    }
+
+    private int[] obtainInts(int length) {
+        CropBufferPool pool = mBufferPool;
+        return pool != null ? pool.getInts(length) : new int[length];
+    }
+
+    private void recycleInts(int[] ints) {
+        CropBufferPool pool = mBufferPool;
+        if (pool != null) {
+            pool.putInts(ints);
+        }
+    }
+
+    // bmp is read by a background task until releaseBitmap; UI thread only
+    private void retainBitmap(Bitmap bmp) {
+        int[] users = mBitmapUsers.get(bmp);
+        if (users == null) {
+            mBitmapUsers.put(bmp, new int[]{1});
+        } else {
+            users[0]++;
+        }
+    }
+
+    private void releaseBitmap(Bitmap bmp) {
+        int[] users = mBitmapUsers.get(bmp);
+        if (users == null || --users[0] > 0) {
+            return;
+        }
+        mBitmapUsers.remove(bmp);
+        if (mRetiredBitmaps.remove(bmp) && mBufferPool != null) {
+            mBufferPool.putBitmap(bmp);
+        }
+    }
+
+    private void postReleaseBitmap(final Bitmap bmp) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseBitmap(bmp);
+            }
+        });
+    }
+
+    private Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        CropBufferPool pool = mBufferPool;
+        return pool != null ? pool.getBitmap(width, height, config) : Bitmap.createBitmap(width, height, config);
+    }
+
+    // like Bitmap.createBitmap(int[], ...), but pooled; pixels may be longer than width * height
+    private Bitmap createCropBitmap(int[] pixels, int width, int height) {
+        if (mBufferPool == null) {
+            return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        }
+        Bitmap bitmap = obtainBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+
+    public void setCropParallelism(int parallelism) {
+        this.mCropParallelism = Math.max(1, parallelism);
+    }
+
+    public int getCropParallelism() {
+        return mCropParallelism;
+    }
+
+
+    public void setCropQuality(int quality) {
+        this.mCropQuality = quality;
+    }
+
+    /**
+     * Enhancement applied to every crop, one of the {@link ScanEnhancer} modes. Warped crops from
+     * a bitmap are converted to gray inside the warp.
+     */
+    public void setScanEnhancement(int mode) {
+        this.mScanEnhancement = mode;
+    }
+
+    public int getScanEnhancement() {
+        return mScanEnhancement;
+    }
+
+    /**
+     * Shows a nearest-neighbour preview of the crop while dragging and runs the full
+     * {@link #setCropQuality(int) quality} crop when the drag ends, both on {@code executor}.
+     * Previews are computed one at a time from the latest points; one that no longer matches
+     * the points when it finishes is dropped. Polygon crops skip the preview and only report
+     * the final crop.
+     */
+    public void setOnCropPreviewListener(OnCropPreviewListener listener, Executor executor) {
+        this.mPreviewListener = listener;
+        this.mPreviewExecutor = executor;
+        if (listener == null) {
+            removeCallbacks(mPreviewRunnable);
+            mPreviewScheduled = false;
+            mPreviewBitmap = null;
+            if (!mPreviewRunning) {
+                releasePreviewBuffers();
+            }
+        }
+    }
+
+    public void setCropPreviewSize(int previewSize) {
+        this.mPreviewSize = Math.max(1, previewSize);
+        mPreviewBitmap = null;
+    }
+
 
     public Bitmap crop() {
         return crop(mCropPoints);
@@ -255,41 +1014,407 @@ public class CropImageView extends AppCompatImageView {
 
 
     public Bitmap crop(Point[] points) {
-        if (!checkPoints(points)) {
+        return crop(checkPoints(points) ? toQuad(points) : null);
+    }
+
+    public Bitmap crop(float[] points) {
+        if (!isValidPoints(points)) {
             return null;
         }
         Bitmap bmp = getBitmap();
-//        return bmp == null ? null : SmartCropper.crop(bmp, points);
-        return bmp;
+        return bmp == null ? null : cropCached(bmp, mImageSource, points.clone(), mCropQuality, mScanEnhancement, null);
     }
 
+    public boolean crop(Point[] points, OutputStream stream, Bitmap.CompressFormat format) throws IOException {
+        return crop(points, stream, format, DEFAULT_ENCODE_QUALITY);
+    }
 
-    public boolean canRightCrop() {
-        if (!checkPoints(mCropPoints)) {
+    public boolean crop(Point[] points, OutputStream stream, Bitmap.CompressFormat format, int quality) throws IOException {
+        return crop(checkPoints(points) ? toQuad(points) : null, stream, format, quality);
+    }
+
+    /**
+     * Crops straight into {@code stream} as JPEG or PNG, warping and encoding a strip of rows at
+     * a time, so the output is never held as a whole. Polygon crops keep a transparent outside
+     * in PNG and get a black one in JPEG. With {@link #setScanEnhancement(int) enhancement} the
+     * crop is held in memory once, as enhancement needs the whole image. Returns false if there
+     * is no image or the points are invalid; the stream is not closed.
+     */
+    public boolean crop(float[] points, OutputStream stream, Bitmap.CompressFormat format, int quality) throws IOException {
+        Bitmap bmp = getBitmap();
+        if (!isValidPoints(points) || bmp == null) {
             return false;
         }
-        Point lt = mCropPoints[0];
-        Point rt = mCropPoints[1];
-        Point rb = mCropPoints[2];
-        Point lb = mCropPoints[3];
-        return (pointSideLine(lt, rb, lb) * pointSideLine(lt, rb, rt) < 0) && (pointSideLine(lb, rt, lt) * pointSideLine(lb, rt, rb) < 0);
+        points = points.clone();
+        int[] size = CropStrips.getCropSize(bmp, mImageSource, points);
+        StripEncoder encoder;
+        if (format == Bitmap.CompressFormat.PNG) {
+            encoder = new PngStripEncoder(stream, size[0], size[1], points.length != 8);
+        } else if (format == Bitmap.CompressFormat.JPEG) {
+            encoder = new JpegStripEncoder(stream, size[0], size[1], quality);
+        } else {
+            throw new IllegalArgumentException("unsupported format " + format);
+        }
+        if (mScanEnhancement == ScanEnhancer.MODE_NONE) {
+            CropStrips.crop(bmp, mImageSource, points, mCropQuality, mCropParallelism, null, encoder);
+        } else {
+            CropStrips.PixelWriter writer = new CropStrips.PixelWriter(size[0], size[1]);
+            CropStrips.crop(bmp, mImageSource, points, mCropQuality, mCropParallelism, null, writer);
+            ScanEnhancer.enhance(writer.getPixels(), size[0], size[1], mScanEnhancement, mCropParallelism);
+            encoder.writeRows(writer.getPixels(), 0, size[0], size[1]);
+        }
+        encoder.finish();
+        return true;
+    }
+
+    public Future<Bitmap> cropAsync(Executor executor, OnCropListener listener) {
+        return cropAsync(mCropPoints, executor, listener);
+    }
+
+    public Future<Bitmap> cropAsync(Point[] points, Executor executor, OnCropListener listener) {
+        return cropAsync(checkPoints(points) ? toQuad(points) : null, executor, listener);
+    }
+
+    /**
+     * Crops on {@code executor} from a snapshot of the points and the current bitmap. A new
+     * request, a new drag, a new image or detaching the view cancels the pending one.
+     */
+    public Future<Bitmap> cropAsync(float[] points, Executor executor, OnCropListener listener) {
+        cancelCrop();
+        Bitmap bmp = getBitmap();
+        float[] quad = isValidPoints(points) && bmp != null ? points.clone() : null;
+        if (quad != null) {
+            retainBitmap(bmp);
+        }
+        CropTask task = new CropTask(new CropCallable(bmp, mImageSource, quad, mCropQuality, mScanEnhancement), listener);
+        mPendingCrop = task;
+        executor.execute(task);
+        return task;
+    }
+
+    public void cancelCrop() {
+        if (mPendingCrop != null) {
+            mPendingCrop.cancel(false);
+            mPendingCrop = null;
+        }
+    }
+
+    private Bitmap cropCached(Bitmap bmp, TiledImageSource source, float[] points, int quality, int enhancement,
+                              Future<?> cancel) {
+        CropResultCache cache = mCropResultCache;
+        if (cache == null) {
+            return cropPoints(bmp, source, points, quality, enhancement, cancel);
+        }
+        CropResultCache.Key key = cache.getKey(source != null ? source : bmp, points, quality, enhancement);
+        Bitmap crop = cache.get(key);
+        if (crop == null) {
+            crop = cropPoints(bmp, source, points, quality, enhancement, cancel);
+            // a cached crop outlives whoever it is handed to, so it must never reach the pool
+            CropBufferPool pool = mBufferPool;
+            if (pool != null && crop != null) {
+                pool.disown(crop);
+            }
+            cache.put(key, crop);
+        }
+        return crop;
+    }
+
+    private Bitmap cropPoints(Bitmap bmp, TiledImageSource source, float[] points, int quality, int enhancement,
+                              Future<?> cancel) {
+        if (source != null) {
+            int[] size = CropStrips.getCropSize(null, source, points);
+            try {
+                if (enhancement == ScanEnhancer.MODE_NONE) {
+                    CropStrips.BitmapWriter writer = new CropStrips.BitmapWriter(size[0], size[1]);
+                    return CropStrips.crop(null, source, points, quality, mCropParallelism, cancel, writer) ? writer.getBitmap() : null;
+                }
+                CropStrips.PixelWriter writer = new CropStrips.PixelWriter(size[0], size[1]);
+                if (!CropStrips.crop(null, source, points, quality, mCropParallelism, cancel, writer)) {
+                    return null;
+                }
+                ScanEnhancer.enhance(writer.getPixels(), size[0], size[1], enhancement, mCropParallelism);
+                return Bitmap.createBitmap(writer.getPixels(), size[0], size[1], Bitmap.Config.ARGB_8888);
+            } catch (IOException e) {
+                // the writers don't do any IO
+                throw new IllegalStateException(e);
+            }
+        }
+        if (points.length != 8) {
+            return cropPolygon(bmp, points, enhancement, cancel);
+        }
+        RemapTable table = mRemapTable;
+        if (table != null && table.matches(points, bmp.getWidth(), bmp.getHeight(), quality)) {
+            return cropRemapped(bmp, table, enhancement, cancel);
+        }
+        return enhancement == ScanEnhancer.MODE_NONE
+                ? cropQuad(bmp, points, quality, cancel)
+                : cropQuadEnhanced(bmp, points, quality, enhancement, cancel);
+    }
+
+    // a pure gather through the precomputed table, no homography per pixel
+    private Bitmap cropRemapped(Bitmap bmp, final RemapTable table, int enhancement, final Future<?> cancel) {
+        final int[] src = obtainInts(table.getSourceLength());
+        bmp.getPixels(src, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        final int width = table.getWidth();
+        int height = table.getHeight();
+        final int[] dst = obtainInts(width * height);
+        try {
+            ParallelBands.run(height, mCropParallelism, new ParallelBands.Band() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    for (int y = rowStart; y < rowEnd; y += CANCEL_CHECK_ROWS) {
+                        if (cancel != null && cancel.isCancelled()) {
+                            return;
+                        }
+                        int end = Math.min(rowEnd, y + CANCEL_CHECK_ROWS);
+                        table.remap(src, dst, y * width, y, end);
+                    }
+                }
+            });
+            if (cancel != null && cancel.isCancelled()) {
+                return null;
+            }
+            ScanEnhancer.enhance(dst, width, height, enhancement, mCropParallelism);
+            return createCropBitmap(dst, width, height);
+        } finally {
+            recycleInts(src);
+            recycleInts(dst);
+        }
+    }
+
+    // warps straight to gray, so the enhanced output is the only ARGB buffer written
+    private Bitmap cropQuadEnhanced(Bitmap bmp, float[] quad, final int quality, int enhancement, final Future<?> cancel) {
+        final int width = PerspectiveWarp.getOutputWidth(quad);
+        int height = PerspectiveWarp.getOutputHeight(quad);
+        double[] transform = PerspectiveWarp.computeTransform(quad, width, height);
+        final byte[] gray = new byte[width * height];
+        boolean done = CropStrips.warp(bmp, null, transform, width, height, mCropParallelism, cancel, mBufferPool,
+                new CropStrips.WindowWarp() {
+                    @Override
+                    public void warp(int[] src, int srcWidth, int srcHeight, double[] m, int colStart, int colEnd,
+                                     int rowStart, int rowEnd) {
+                        for (int y = rowStart; y < rowEnd; y += CANCEL_CHECK_ROWS) {
+                            if (cancel != null && cancel.isCancelled()) {
+                                return;
+                            }
+                            int end = Math.min(rowEnd, y + CANCEL_CHECK_ROWS);
+                            PerspectiveWarp.warpGray(src, srcWidth, srcHeight, m, gray, y * width + colStart, width,
+                                    colStart, colEnd, y, end, quality);
+                        }
+                    }
+                });
+        if (!done || cancel != null && cancel.isCancelled()) {
+            return null;
+        }
+        int[] dst = ScanEnhancer.enhance(gray, width, height, enhancement, mCropParallelism, obtainInts(width * height), false);
+        Bitmap bitmap = createCropBitmap(dst, width, height);
+        recycleInts(dst);
+        return bitmap;
+    }
+
+    // reads the source a strip's window at a time, so only the output is held whole
+    private Bitmap cropQuad(Bitmap bmp, float[] quad, final int quality, final Future<?> cancel) {
+        final int width = PerspectiveWarp.getOutputWidth(quad);
+        int height = PerspectiveWarp.getOutputHeight(quad);
+        double[] transform = PerspectiveWarp.computeTransform(quad, width, height);
+        final int[] dst = obtainInts(width * height);
+        try {
+            boolean done = CropStrips.warp(bmp, null, transform, width, height, mCropParallelism, cancel, mBufferPool,
+                    new CropStrips.WindowWarp() {
+                        @Override
+                        public void warp(int[] src, int srcWidth, int srcHeight, double[] m, int colStart, int colEnd,
+                                         int rowStart, int rowEnd) {
+                            for (int y = rowStart; y < rowEnd; y += CANCEL_CHECK_ROWS) {
+                                if (cancel != null && cancel.isCancelled()) {
+                                    return;
+                                }
+                                int end = Math.min(rowEnd, y + CANCEL_CHECK_ROWS);
+                                PerspectiveWarp.warp(src, srcWidth, srcHeight, m, dst, y * width + colStart, width,
+                                        colStart, colEnd, y, end, quality);
+                            }
+                        }
+                    });
+            if (!done || cancel != null && cancel.isCancelled()) {
+                return null;
+            }
+            return createCropBitmap(dst, width, height);
+        } finally {
+            recycleInts(dst);
+        }
+    }
+
+    // copies the polygon's bounding box and clears what lies outside the polygon
+    private Bitmap cropPolygon(Bitmap bmp, final float[] points, int enhancement, final Future<?> cancel) {
+        int[] bounds = PolygonMask.getBounds(points, points.length / 2, bmp.getWidth(), bmp.getHeight(), new int[4]);
+        final int left = bounds[0];
+        final int top = bounds[1];
+        final int width = bounds[2] - left;
+        int height = bounds[3] - top;
+        final int[] pixels = obtainInts(width * height);
+        bmp.getPixels(pixels, 0, width, left, top, width, height);
+        try {
+            ParallelBands.run(height, mCropParallelism, new ParallelBands.Band() {
+                @Override
+                public void run(int rowStart, int rowEnd) {
+                    for (int y = rowStart; y < rowEnd; y += CANCEL_CHECK_ROWS) {
+                        if (cancel != null && cancel.isCancelled()) {
+                            return;
+                        }
+                        PolygonMask.mask(pixels, width, left, top, points, points.length / 2, y, Math.min(rowEnd, y + CANCEL_CHECK_ROWS));
+                    }
+                }
+            });
+            if (cancel != null && cancel.isCancelled()) {
+                return null;
+            }
+            ScanEnhancer.enhance(pixels, width, height, enhancement, mCropParallelism);
+            return createCropBitmap(pixels, width, height);
+        } finally {
+            recycleInts(pixels);
+        }
+    }
+
+    private void schedulePreview() {
+        if (mPreviewListener != null && !mPreviewScheduled) {
+            mPreviewScheduled = true;
+            postOnAnimation(mPreviewRunnable);
+        }
+    }
+
+    // hands the current points to the preview job, unless one is still running; its delivery
+    // schedules the next preview if the points moved on
+    private void updatePreview() {
+        if (mPreviewListener == null || mPreviewRunning || getPointCount() != 4 || mDraggingIndex < 0) {
+            return;
+        }
+        Bitmap bmp = getBitmap();
+        if (bmp == null) {
+            return;
+        }
+        System.arraycopy(mCropPoints, 0, mPreviewQuad, 0, 8);
+        mPreviewJobBitmap = bmp;
+        retainBitmap(bmp);
+        mPreviewJobGeneration = mImageGeneration;
+        mPreviewJobImageWidth = getImageWidth();
+        mPreviewJobSize = mPreviewSize;
+        mPreviewRunning = true;
+        mPreviewExecutor.execute(mPreviewJob);
+    }
+
+    // on the preview executor
+    private void computePreview() {
+        try {
+            if (mPreviewSource == null || mPreviewSourceGeneration != mPreviewJobGeneration) {
+                initPreviewSource(mPreviewJobBitmap, mPreviewJobImageWidth);
+                mPreviewSourceGeneration = mPreviewJobGeneration;
+            }
+            for (int i = 0; i < 8; i++) {
+                mPreviewSourceQuad[i] = mPreviewQuad[i] * mPreviewSourceScale;
+            }
+            int width = PerspectiveWarp.getOutputWidth(mPreviewSourceQuad);
+            int height = PerspectiveWarp.getOutputHeight(mPreviewSourceQuad);
+            float fit = Math.min(1f, (float) mPreviewJobSize / Math.max(width, height));
+            width = Math.max(1, Math.round(width * fit));
+            height = Math.max(1, Math.round(height * fit));
+            if (mPreviewPixels == null || mPreviewPixels.length != mPreviewJobSize * mPreviewJobSize) {
+                mPreviewPixels = new int[mPreviewJobSize * mPreviewJobSize];
+            }
+            PerspectiveWarp.computeTransform(mPreviewSourceQuad, width, height, mPreviewTransform);
+            PerspectiveWarp.warpNearest(mPreviewSource, mPreviewSourceWidth, mPreviewSourceHeight, mPreviewTransform,
+                    mPreviewPixels, 0, width, 0, height);
+            mPreviewWidth = width;
+            mPreviewHeight = height;
+            mPreviewFailed = false;
+        } catch (RuntimeException e) {
+            Log.w("TAG", "crop preview failed", e);
+            mPreviewFailed = true;
+        }
+    }
+
+    private void initPreviewSource(Bitmap bmp, int imageWidth) {
+        float scale = Math.min(1f, (float) PREVIEW_SOURCE_SIZE / Math.max(bmp.getWidth(), bmp.getHeight()));
+        Bitmap scaled = bmp;
+        if (scale < 1f) {
+            scaled = Bitmap.createScaledBitmap(bmp, Math.max(1, Math.round(bmp.getWidth() * scale)),
+                    Math.max(1, Math.round(bmp.getHeight() * scale)), true);
+        }
+        mPreviewSourceWidth = scaled.getWidth();
+        mPreviewSourceHeight = scaled.getHeight();
+        mPreviewSourceScale = (float) mPreviewSourceWidth / imageWidth;
+        mPreviewSource = new int[mPreviewSourceWidth * mPreviewSourceHeight];
+        scaled.getPixels(mPreviewSource, 0, mPreviewSourceWidth, 0, 0, mPreviewSourceWidth, mPreviewSourceHeight);
+        if (scaled != bmp) {
+            scaled.recycle();
+        }
+    }
+
+    private void deliverPreview() {
+        mPreviewRunning = false;
+        releaseBitmap(mPreviewJobBitmap);
+        mPreviewJobBitmap = null;
+        if (mPreviewListener == null) {
+            releasePreviewBuffers();
+            return;
+        }
+        if (mPreviewFailed || mPreviewJobGeneration != mImageGeneration || mDraggingIndex < 0 || getPointCount() != 4) {
+            return;
+        }
+        if (!Arrays.equals(mPreviewQuad, mCropPoints)) {
+            // stale, warp the current points instead
+            schedulePreview();
+            return;
+        }
+        if (mPreviewBitmap == null || mPreviewBitmap.getAllocationByteCount() < mPreviewWidth * mPreviewHeight * 4) {
+            mPreviewBitmap = Bitmap.createBitmap(Math.max(mPreviewSize, mPreviewWidth), Math.max(mPreviewSize, mPreviewHeight),
+                    Bitmap.Config.ARGB_8888);
+        }
+        mPreviewBitmap.reconfigure(mPreviewWidth, mPreviewHeight, Bitmap.Config.ARGB_8888);
+        mPreviewBitmap.setPixels(mPreviewPixels, 0, mPreviewWidth, 0, 0, mPreviewWidth, mPreviewHeight);
+        mPreviewListener.onCropPreview(mPreviewBitmap);
+    }
+
+    // only while no preview job runs
+    private void releasePreviewBuffers() {
+        mPreviewSource = null;
+        mPreviewPixels = null;
+    }
+
+    private float[] toQuad(Point[] points) {
+        float[] quad = new float[points.length * 2];
+        for (int i = 0; i < points.length; i++) {
+            quad[i * 2] = points[i].x;
+            quad[i * 2 + 1] = points[i].y;
+        }
+        return quad;
+    }
+
+
+    public boolean canRightCrop() {
+        int count = getPointCount();
+        if (count == 4) {
+            return CropGeometry.isConvexQuad(mCropPoints);
+        }
+        return count >= 3 && CropGeometry.isSimplePolygon(mCropPoints, count);
     }
 
     public boolean checkPoints(Point[] points) {
-        return points != null && points.length == 4
-                && points[0] != null && points[1] != null && points[2] != null && points[3] != null;
+        if (points == null || points.length < 3) {
+            return false;
+        }
+        for (Point point : points) {
+            if (point == null) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private long pointSideLine(Point lineP1, Point lineP2, Point point) {
-        return pointSideLine(lineP1, lineP2, point.x, point.y);
+    private static boolean isValidPoints(float[] points) {
+        return points != null && points.length >= 6 && points.length % 2 == 0;
     }
 
-    private long pointSideLine(Point lineP1, Point lineP2, int x, int y) {
-        long x1 = lineP1.x;
-        long y1 = lineP1.y;
-        long x2 = lineP2.x;
-        long y2 = lineP2.y;
-        return (x - x1) * (y2 - y1) - (y - y1) * (x2 - x1);
+    private int getPointCount() {
+        return mCropPoints == null ? 0 : mCropPoints.length / 2;
     }
 
     public Bitmap getBitmap() {
@@ -337,73 +1462,336 @@ public class CropImageView extends AppCompatImageView {
     }
 
     private void initMagnifier() {
-        Bitmap bitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.RGB_565);
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawColor(Color.BLACK);
-        canvas.drawBitmap(getBitmap(), null, new Rect(mActLeft, mActTop, mActWidth + mActLeft, mActHeight + mActTop), null);
-        canvas.save();
-        BitmapShader magnifierShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        int size = (int) Math.ceil(getWidth() / 4f / mMagnifierZoom) + 1;
+        mMagnifierBitmap = obtainBitmap(size, size, Bitmap.Config.RGB_565);
+        mMagnifierPixels = obtainInts(size * size);
+        mMagnifierSampleX = Integer.MIN_VALUE;
+        BitmapShader magnifierShader = new BitmapShader(mMagnifierBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
         mMagnifierDrawable = new ShapeDrawable(new OvalShape());
         mMagnifierDrawable.getPaint().setShader(magnifierShader);
+        mMagnifierDrawable.getPaint().setFilterBitmap(true);
+    }
+
+    private void releaseMagnifier() {
+        if (mBufferPool != null && mMagnifierBitmap != null) {
+            mBufferPool.putBitmap(mMagnifierBitmap);
+            mBufferPool.putInts(mMagnifierPixels);
+        }
+        mMagnifierDrawable = null;
+        mMagnifierBitmap = null;
+        mMagnifierPixels = null;
+    }
+
+    // copies the source neighbourhood of the dragging point, at source resolution
+    private void sampleMagnifier(int x, int y) {
+        if (x == mMagnifierSampleX && y == mMagnifierSampleY) {
+            return;
+        }
+        mMagnifierSampleX = x;
+        mMagnifierSampleY = y;
+        int size = mMagnifierBitmap.getWidth();
+        int left = x - size / 2;
+        int top = y - size / 2;
+        if (mImageSource != null) {
+            if (!copyMagnifierTile(left, top, size)) {
+                requestMagnifierTile(left, top, size);
+                sampleBaseLevel(left, top, size);
+            }
+            mMagnifierBitmap.setPixels(mMagnifierPixels, 0, size, 0, 0, size, size);
+            return;
+        }
+        Bitmap bmp = getBitmap();
+        int sx0 = Math.max(left, 0), sy0 = Math.max(top, 0);
+        int sx1 = bmp == null ? 0 : Math.min(left + size, bmp.getWidth());
+        int sy1 = bmp == null ? 0 : Math.min(top + size, bmp.getHeight());
+        if (sx0 > left || sy0 > top || sx1 < left + size || sy1 < top + size) {
+            Arrays.fill(mMagnifierPixels, Color.BLACK);
+        }
+        if (sx1 > sx0 && sy1 > sy0) {
+            bmp.getPixels(mMagnifierPixels, (sy0 - top) * size + (sx0 - left), size, sx0, sy0, sx1 - sx0, sy1 - sy0);
+        }
+        mMagnifierBitmap.setPixels(mMagnifierPixels, 0, size, 0, 0, size, size);
+    }
+
+    // copies the window out of the last decoded tile, if it lies inside
+    private boolean copyMagnifierTile(int left, int top, int size) {
+        int tileSize = mMagnifierTileSize;
+        if (mMagnifierTile == null || tileSize != size * 2
+                || left < mMagnifierTileLeft || top < mMagnifierTileTop
+                || left + size > mMagnifierTileLeft + tileSize || top + size > mMagnifierTileTop + tileSize) {
+            return false;
+        }
+        int offset = (top - mMagnifierTileTop) * tileSize + (left - mMagnifierTileLeft);
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(mMagnifierTile, offset + row * tileSize, mMagnifierPixels, row * size, size);
+        }
+        return true;
+    }
+
+    // decodes a tile of twice the magnifier size around the window in the background; the
+    // delivery resamples, so a window that moved on in the meantime asks for the next one
+    private void requestMagnifierTile(int left, int top, int size) {
+        if (mMagnifierTileRunning) {
+            return;
+        }
+        mMagnifierTileRunning = true;
+        mMagnifierJobSource = mImageSource;
+        mMagnifierJobGeneration = mImageGeneration;
+        mMagnifierJobSize = size * 2;
+        mMagnifierJobLeft = left - size / 2;
+        mMagnifierJobTop = top - size / 2;
+        Executor executor = mDetectExecutor != null ? mDetectExecutor : getDefaultExecutor();
+        executor.execute(mMagnifierTileJob);
+    }
+
+    // runs on the executor
+    private void decodeMagnifierTile() {
+        int tileSize = mMagnifierJobSize;
+        try {
+            if (mMagnifierJobPixels == null || mMagnifierJobPixels.length != tileSize * tileSize) {
+                mMagnifierJobPixels = new int[tileSize * tileSize];
+            }
+            if (mMagnifierJobBitmap == null || mMagnifierJobBitmap.getWidth() != tileSize) {
+                mMagnifierJobBitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            }
+            Arrays.fill(mMagnifierJobPixels, Color.BLACK);
+            mMagnifierJobBitmap = mMagnifierJobSource.readPixels(mMagnifierJobLeft, mMagnifierJobTop, tileSize, tileSize,
+                    mMagnifierJobPixels, 0, tileSize, mMagnifierJobBitmap);
+        } catch (RuntimeException e) {
+            Log.w("TAG", "magnifier tile failed", e);
+            mMagnifierJobSize = 0;
+        }
+    }
+
+    private void deliverMagnifierTile() {
+        mMagnifierTileRunning = false;
+        if (mMagnifierJobSize > 0 && mMagnifierJobGeneration == mImageGeneration && mMagnifierJobSource == mImageSource) {
+            int[] tile = mMagnifierTile;
+            mMagnifierTile = mMagnifierJobPixels;
+            mMagnifierJobPixels = tile;
+            mMagnifierTileLeft = mMagnifierJobLeft;
+            mMagnifierTileTop = mMagnifierJobTop;
+            mMagnifierTileSize = mMagnifierJobSize;
+            mMagnifierSampleX = Integer.MIN_VALUE;
+            if (mDraggingIndex >= 0) {
+                invalidate();
+            }
+        }
+        mMagnifierJobSource = null;
+    }
+
+    // the displayed base level stretched over the window, until its tile arrives
+    private void sampleBaseLevel(int left, int top, int size) {
+        Arrays.fill(mMagnifierPixels, Color.BLACK);
+        Bitmap base = getBitmap();
+        if (base == null) {
+            return;
+        }
+        float scale = (float) base.getWidth() / getImageWidth();
+        int x0 = Math.max((int) Math.floor(left * scale), 0);
+        int y0 = Math.max((int) Math.floor(top * scale), 0);
+        int x1 = Math.min((int) Math.ceil((left + size) * scale), base.getWidth());
+        int y1 = Math.min((int) Math.ceil((top + size) * scale), base.getHeight());
+        if (x1 <= x0 || y1 <= y0) {
+            return;
+        }
+        int width = x1 - x0, height = y1 - y0;
+        if (mMagnifierBasePixels == null || mMagnifierBasePixels.length < width * height) {
+            mMagnifierBasePixels = new int[width * height];
+        }
+        base.getPixels(mMagnifierBasePixels, 0, width, x0, y0, width, height);
+        for (int row = 0; row < size; row++) {
+            int by = (int) Math.floor((top + row) * scale) - y0;
+            if (by < 0 || by >= height) {
+                continue;
+            }
+            for (int col = 0; col < size; col++) {
+                int bx = (int) Math.floor((left + col) * scale) - x0;
+                if (bx >= 0 && bx < width) {
+                    mMagnifierPixels[row * size + col] = mMagnifierBasePixels[by * width + bx];
+                }
+            }
+        }
+    }
+
+    private void updateMagnifierShader(float cx, float cy) {
+        sampleMagnifier((int) getDraggingX(), (int) getDraggingY());
+        int half = mMagnifierBitmap.getWidth() / 2;
+        mMagnifierMatrix.setScale(mMagnifierZoom, mMagnifierZoom);
+        mMagnifierMatrix.postTranslate(cx - half * mMagnifierZoom, cy - half * mMagnifierZoom);
+        mMagnifierDrawable.getPaint().getShader().setLocalMatrix(mMagnifierMatrix);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        getDrawablePosition();
+        ensureGeometry();
         onDrawCropPoint(canvas);
     }
 
     protected void onDrawCropPoint(Canvas canvas) {
+        RenderStats stats = mRenderStats;
+        long time = stats != null ? System.nanoTime() : 0;
         onDrawMask(canvas);
-        onDrawGuideLine(canvas);
-        onDrawLines(canvas);
-        onDrawPoints(canvas);
+        if (stats != null) {
+            time = stats.record(RenderStats.STAGE_MASK, time);
+        }
+        if (mDraggingIndex >= 0 && prepareStaticOverlay()) {
+            // guide lines and untouched handles are replayed; the outline is the same path as
+            // when idle, so joins and translucent strokes look the same while dragging
+            canvas.drawPicture(mStaticGuideLines);
+            long replay = 0;
+            if (stats != null) {
+                long now = System.nanoTime();
+                replay = now - time;
+                time = now;
+            }
+            onDrawLines(canvas);
+            if (stats != null) {
+                time = stats.record(RenderStats.STAGE_LINES, time);
+            }
+            canvas.drawPicture(mStaticPoints);
+            if (stats != null) {
+                long now = System.nanoTime();
+                stats.add(RenderStats.STAGE_OVERLAY, replay + now - time);
+                time = now;
+            }
+            drawMovingPoints(canvas);
+        } else {
+            onDrawGuideLine(canvas);
+            if (stats != null) {
+                time = stats.record(RenderStats.STAGE_GUIDE_LINE, time);
+            }
+            onDrawLines(canvas);
+            if (stats != null) {
+                time = stats.record(RenderStats.STAGE_LINES, time);
+            }
+            onDrawPoints(canvas);
+        }
+        if (stats == null) {
+            onDrawMagnifier(canvas);
+            onDrawCusMagnifier(canvas);
+            return;
+        }
+        time = stats.record(RenderStats.STAGE_POINTS, time);
         onDrawMagnifier(canvas);
+        time = stats.record(RenderStats.STAGE_MAGNIFIER, time);
         onDrawCusMagnifier(canvas);
+        stats.record(RenderStats.STAGE_CUS_MAGNIFIER, time);
+        if (mRenderStatsListener != null && ++mRenderStatsFrames >= mRenderStatsInterval) {
+            mRenderStatsFrames = 0;
+            mRenderStatsListener.onRenderStats(stats.snapshot());
+        }
+    }
+
+    /**
+     * Records the guide lines and the handles the current drag leaves in place into
+     * mStaticGuideLines and mStaticPoints, unless the recording is still valid. Returns false if
+     * there is nothing to draw.
+     */
+    private boolean prepareStaticOverlay() {
+        if (!mViewPointsValid) {
+            return false;
+        }
+        int count = getPointCount();
+        if (!mStaticOverlayDirty && mStaticOverlayIndex == mDraggingIndex && !staticPointsMoved(count)) {
+            return true;
+        }
+        Canvas lines = mStaticGuideLines.beginRecording(getWidth(), getHeight());
+        onDrawGuideLine(lines);
+        mStaticGuideLines.endRecording();
+        Canvas points = mStaticPoints.beginRecording(getWidth(), getHeight());
+        for (int i = 0; i < count; i++) {
+            if (!isMovingVertex(i, count)) {
+                drawHandle(points, i);
+            }
+            if (mShowEdgeMidPoint && !isMovingEdge(i, count)) {
+                drawHandle(points, count + i);
+            }
+        }
+        mStaticPoints.endRecording();
+        mStaticOverlayPoints = copyCropPoints(mStaticOverlayPoints);
+        mStaticOverlayIndex = mDraggingIndex;
+        mStaticOverlayDirty = false;
+        return true;
+    }
+
+    private boolean staticPointsMoved(int count) {
+        if (mStaticOverlayPoints.length != count * 2) {
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!isMovingVertex(i, count) && (mStaticOverlayPoints[i * 2] != mCropPoints[i * 2]
+                    || mStaticOverlayPoints[i * 2 + 1] != mCropPoints[i * 2 + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isMovingVertex(int vertex, int count) {
+        return OverlayGeometry.isMovingVertex(mDraggingIndex, vertex, count);
+    }
+
+    private boolean isMovingEdge(int edge, int count) {
+        return OverlayGeometry.isMovingEdge(mDraggingIndex, edge, count);
+    }
+
+    private void drawMovingPoints(Canvas canvas) {
+        int count = getPointCount();
+        for (int i = 0; i < count; i++) {
+            if (isMovingVertex(i, count)) {
+                drawHandle(canvas, i);
+            }
+            if (mShowEdgeMidPoint && isMovingEdge(i, count)) {
+                drawHandle(canvas, count + i);
+            }
+        }
+    }
+
+    private void drawHandle(Canvas canvas, int index) {
+        canvas.drawCircle(mViewPoints[index * 2], mViewPoints[index * 2 + 1], mPointRadius, mPointFillPaint);
+        canvas.drawCircle(mViewPoints[index * 2], mViewPoints[index * 2 + 1], mPointRadius, mPointPaint);
     }
 
     protected void onDrawCusMagnifier(Canvas canvas) {
-        DragPointType pointType = getPointType(mDraggingPoint);
-        if (pointType == null || DragPointType.isEdgePoint(pointType)) {
+        if (mDraggingIndex < 0 || mDraggingIndex >= getPointCount()) {
             return;
         }
 
-        if (mShowMagnifier && mDraggingPoint != null) {
+        if (mShowMagnifier) {
             if (mMagnifierDrawable == null) {
                 initMagnifier();
             }
-            float draggingX = getViewPointX(mDraggingPoint);
-            float draggingY = getViewPointY(mDraggingPoint);
             float radius = getWidth() / 8;
             float cx = radius; //圆心x坐标
-            int lineOffset = (int) dp2px(MAGNIFIER_BORDER_WIDTH);
-            if (0 <= mDraggingPoint.x && mDraggingPoint.x < getDrawable().getIntrinsicWidth() / 2) {
+            int lineOffset = (int) mMagnifierBorderWidth;
+            float draggingX = getDraggingX();
+            if (0 <= draggingX && draggingX < getImageWidth() / 2) {
                 mMagnifierDrawable.setBounds(getWidth() - (int) radius * 2 + lineOffset, lineOffset, getWidth() - lineOffset, (int) radius * 2 - lineOffset);
                 cx = getWidth() - radius;
             } else {
                 mMagnifierDrawable.setBounds(lineOffset, lineOffset, (int) radius * 2 - lineOffset, (int) radius * 2 - lineOffset);
             }
             canvas.drawCircle(cx, radius, radius, mMagnifierPaint);
-            mMagnifierMatrix.setTranslate(radius - draggingX, radius - draggingY);
-            mMagnifierDrawable.getPaint().getShader().setLocalMatrix(mMagnifierMatrix);
+            updateMagnifierShader(cx, radius);
             mMagnifierDrawable.draw(canvas);
-            canvas.drawCircle(cx, radius, dp2px(POINT_RADIUS), mPointFillPaint);
-            canvas.drawCircle(cx, radius, dp2px(POINT_RADIUS), mPointPaint);
+            canvas.drawCircle(cx, radius, mPointRadius, mPointFillPaint);
+            canvas.drawCircle(cx, radius, mPointRadius, mPointPaint);
         }
     }
 
     protected void onDrawMagnifier(Canvas canvas) {
-        if (mShowMagnifier && mDraggingPoint != null) {
+        if (mShowMagnifier && mDraggingIndex >= 0 && mViewPointsValid) {
             if (mMagnifierDrawable == null) {
                 initMagnifier();
             }
-            float draggingX = getViewPointX(mDraggingPoint);
-            float draggingY = getViewPointY(mDraggingPoint);
+            float draggingX = mViewPoints[mDraggingIndex * 2];
+            float draggingY = mViewPoints[mDraggingIndex * 2 + 1];
 
             float radius = getWidth() / 8;
             float cx = radius;
-            int lineOffset = (int) dp2px(MAGNIFIER_BORDER_WIDTH);
+            int lineOffset = (int) mMagnifierBorderWidth;
             mMagnifierDrawable.setBounds(lineOffset, lineOffset, (int) radius * 2 - lineOffset, (int) radius * 2 - lineOffset);
             double pointsDistance = getPointsDistance(draggingX, draggingY, 0, 0);
             if (pointsDistance < (radius * 2.5)) {
@@ -411,10 +1799,9 @@ public class CropImageView extends AppCompatImageView {
                 cx = getWidth() - radius;
             }
             canvas.drawCircle(cx, radius, radius, mMagnifierPaint);
-            mMagnifierMatrix.setTranslate(radius - draggingX, radius - draggingY);
-            mMagnifierDrawable.getPaint().getShader().setLocalMatrix(mMagnifierMatrix);
+            updateMagnifierShader(cx, radius);
             mMagnifierDrawable.draw(canvas);
-            float crossLength = dp2px(MAGNIFIER_CROSS_LINE_LENGTH);
+            float crossLength = mMagnifierCrossLength;
             canvas.drawLine(cx, radius - crossLength, cx, radius + crossLength, mMagnifierCrossPaint);
             canvas.drawLine(cx - crossLength, radius, cx + crossLength, radius, mMagnifierCrossPaint);
         }
@@ -436,8 +1823,15 @@ public class CropImageView extends AppCompatImageView {
         if (mMaskAlpha <= 0) {
             return;
         }
-        Path path = resetPointPath();
-        if (path != null) {
+        Path path = getPointPath();
+        if (path != null && mMaskMode == MASK_MODE_PATH && isSimplePolygon()) {
+            mMaskPath.rewind();
+            mMaskPath.setFillType(Path.FillType.EVEN_ODD);
+            mMaskPath.addRect(mActLeft, mActTop, mActLeft + mActWidth, mActTop + mActHeight, Path.Direction.CW);
+            mMaskPath.addPath(path);
+            mMaskPaint.setAlpha(mMaskAlpha);
+            canvas.drawPath(mMaskPath, mMaskPaint);
+        } else if (path != null) {
             int sc = canvas.saveLayer(mActLeft, mActTop, mActLeft + mActWidth, mActTop + mActHeight, mMaskPaint, Canvas.ALL_SAVE_FLAG);
             mMaskPaint.setAlpha(mMaskAlpha);
             canvas.drawRect(mActLeft, mActTop, mActLeft + mActWidth, mActTop + mActHeight, mMaskPaint);
@@ -449,302 +1843,443 @@ public class CropImageView extends AppCompatImageView {
         }
     }
 
-    private Path resetPointPath() {
-        if (!checkPoints(mCropPoints)) {
-            return null;
+    // even-odd only matches the layer's nonzero fill when no edges cross, which dragging
+    // without the drag limit allows
+    private boolean isSimplePolygon() {
+        if (mSimplePolygonDirty) {
+            mSimplePolygon = CropGeometry.isSimplePolygon(mCropPoints, getPointCount());
+            mSimplePolygonDirty = false;
+        }
+        return mSimplePolygon;
+    }
+
+    private Path getPointPath() {
+        return mViewPointsValid ? mPointLinePath : null;
+    }
+
+    private void ensureGeometry() {
+        if (mGeometryDirty) {
+            getDrawablePosition();
+            mGeometryDirty = false;
+            mStaticOverlayDirty = true;
+            mViewPointsValid = false;
+        }
+        if (!mViewPointsValid || cropPointsDiffer(mViewPointsSource)) {
+            updateViewPoints();
+        }
+    }
+
+    private void updateViewPoints() {
+        mViewPointsValid = false;
+        if (mCropPoints == null) {
+            return;
+        }
+        int count = getPointCount();
+        mViewPointsSource = copyCropPoints(mViewPointsSource);
+        if (mViewPoints.length != count * 4) {
+            mViewPoints = new float[count * 4];
+            mEdgeMidPoints = new float[count * 2];
         }
+        OverlayGeometry.toView(mCropPoints, count, mScaleX, mScaleY, mActLeft, mActTop, mEdgeMidPoints, mViewPoints);
+        mHandleGrid.build(mViewPoints, mShowEdgeMidPoint ? count * 2 : count, mTouchCatchDistance);
+        mSimplePolygonDirty = true;
         mPointLinePath.reset();
-        Point lt = mCropPoints[0];
-        Point rt = mCropPoints[1];
-        Point rb = mCropPoints[2];
-        Point lb = mCropPoints[3];
-        mPointLinePath.moveTo(getViewPointX(lt), getViewPointY(lt));
-        mPointLinePath.lineTo(getViewPointX(rt), getViewPointY(rt));
-        mPointLinePath.lineTo(getViewPointX(rb), getViewPointY(rb));
-        mPointLinePath.lineTo(getViewPointX(lb), getViewPointY(lb));
+        mPointLinePath.moveTo(mViewPoints[0], mViewPoints[1]);
+        for (int i = 1; i < count; i++) {
+            mPointLinePath.lineTo(mViewPoints[i * 2], mViewPoints[i * 2 + 1]);
+        }
         mPointLinePath.close();
-        return mPointLinePath;
+        mViewPointsValid = true;
     }
 
     private void getDrawablePosition() {
         Drawable drawable = getDrawable();
         if (drawable != null) {
             getImageMatrix().getValues(mMatrixValue);
-            mScaleX = mMatrixValue[Matrix.MSCALE_X];
-            mScaleY = mMatrixValue[Matrix.MSCALE_Y];
             int origW = drawable.getIntrinsicWidth();
             int origH = drawable.getIntrinsicHeight();
-            mActWidth = Math.round(origW * mScaleX);
-            mActHeight = Math.round(origH * mScaleY);
+            mActWidth = Math.round(origW * mMatrixValue[Matrix.MSCALE_X]);
+            mActHeight = Math.round(origH * mMatrixValue[Matrix.MSCALE_Y]);
+            // view px per image px; the drawable is only a base level for a tiled source
+            mScaleX = mMatrixValue[Matrix.MSCALE_X] * origW / getImageWidth();
+            mScaleY = mMatrixValue[Matrix.MSCALE_Y] * origH / getImageHeight();
+            mActLeft = (getWidth() - mActWidth) / 2;
+            mActTop = (getHeight() - mActHeight) / 2;
+        } else if (mLiveFrameWidth > 0 && mLiveFrameHeight > 0) {
+            float scale = Math.min((float) getWidth() / mLiveFrameWidth, (float) getHeight() / mLiveFrameHeight);
+            mActWidth = Math.round(mLiveFrameWidth * scale);
+            mActHeight = Math.round(mLiveFrameHeight * scale);
+            mScaleX = scale;
+            mScaleY = scale;
             mActLeft = (getWidth() - mActWidth) / 2;
             mActTop = (getHeight() - mActHeight) / 2;
         }
     }
 
     protected void onDrawLines(Canvas canvas) {
-        Path path = resetPointPath();
+        Path path = getPointPath();
         if (path != null) {
             canvas.drawPath(path, mLinePaint);
         }
     }
 
     protected void onDrawPoints(Canvas canvas) {
-        if (!checkPoints(mCropPoints)) {
+        if (!mViewPointsValid) {
             return;
         }
-        for (Point point : mCropPoints) {
-            canvas.drawCircle(getViewPointX(point), getViewPointY(point), dp2px(POINT_RADIUS), mPointFillPaint);
-            canvas.drawCircle(getViewPointX(point), getViewPointY(point), dp2px(POINT_RADIUS), mPointPaint);
-        }
-        if (mShowEdgeMidPoint) {
-            setEdgeMidPoints();
-            for (Point point : mEdgeMidPoints) {
-                canvas.drawCircle(getViewPointX(point), getViewPointY(point), dp2px(POINT_RADIUS), mPointFillPaint);
-                canvas.drawCircle(getViewPointX(point), getViewPointY(point), dp2px(POINT_RADIUS), mPointPaint);
-            }
+        int count = mShowEdgeMidPoint ? getPointCount() * 2 : getPointCount();
+        for (int i = 0; i < count; i++) {
+            drawHandle(canvas, i);
         }
     }
 
     @SuppressLint("ClickableViewAccessibility")
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        RenderStats stats = mRenderStats;
+        if (stats == null) {
+            return handleTouchEvent(event);
+        }
+        long time = System.nanoTime();
+        boolean handled = handleTouchEvent(event);
+        stats.record(RenderStats.STAGE_TOUCH, time);
+        return handled;
+    }
+
+    private boolean handleTouchEvent(MotionEvent event) {
         int action = event.getAction();
         boolean handle = true;
         switch (action) {
             case MotionEvent.ACTION_DOWN:
-                mDraggingPoint = getNearbyPoint(event);
-                if (mDraggingPoint == null) {
+                mDraggingIndex = isLivePreview() ? -1 : getNearbyPoint(event);
+                if (mDraggingIndex < 0) {
                     handle = false;
+                } else {
+                    mCropPointsEdited = true;
+                    cancelCrop();
+                    mLastTouchX = event.getX();
+                    mLastTouchY = event.getY();
+                    mLastTouchTime = event.getEventTime();
+                    mDirtyRect.setEmpty();
+                    addDragBounds(mDraggingIndex);
+                    invalidateDragArea();
                 }
                 break;
             case MotionEvent.ACTION_MOVE:
-                toImagePointSize(mDraggingPoint, event);
+                if (mDraggingIndex >= 0) {
+                    onDragMove(event);
+                }
                 break;
             case MotionEvent.ACTION_UP:
-                mDraggingPoint = null;
+                if (mDraggingIndex >= 0) {
+                    if (mTouchPrediction > 0) {
+                        dragTo(event.getX(), event.getY(), event.getX(), event.getY());
+                    }
+                    if (mPreviewListener != null) {
+                        removeCallbacks(mPreviewRunnable);
+                        mPreviewScheduled = false;
+                        cropAsync(mCropPoints, mPreviewExecutor, mPreviewListener);
+                    }
+                    mDirtyRect.setEmpty();
+                    addDragBounds(mDraggingIndex);
+                    invalidateDragArea();
+                }
+                mDraggingIndex = -1;
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                // settle a predicted handle back on the last real sample, but don't crop
+                if (mDraggingIndex >= 0) {
+                    if (mTouchPrediction > 0) {
+                        dragTo(mLastTouchX, mLastTouchY, mLastTouchX, mLastTouchY);
+                    }
+                    mDirtyRect.setEmpty();
+                    addDragBounds(mDraggingIndex);
+                    invalidateDragArea();
+                }
+                mDraggingIndex = -1;
                 break;
         }
-        invalidate();
         return handle || super.onTouchEvent(event);
     }
 
-    private Point getNearbyPoint(MotionEvent event) {
-        if (checkPoints(mCropPoints)) {
-            for (Point p : mCropPoints) {
-                if (isTouchPoint(p, event)) return p;
+    // one move event carries every sample since the last frame; they are folded into a single
+    // drag, validation and invalidate. The handle only follows the newest sample, so the
+    // historical ones are read just for the prediction velocity and ignored without it.
+    private void onDragMove(MotionEvent event) {
+        int history = event.getHistorySize();
+        long time = event.getEventTime();
+        long latency = SystemClock.uptimeMillis() - time;
+        mTouchFrames++;
+        mTouchSamples += history + 1;
+        mTouchLatencySum += latency;
+        mTouchLatencyMax = Math.max(mTouchLatencyMax, latency);
+
+        float x = event.getX();
+        float y = event.getY();
+        float targetX = x, targetY = y;
+        if (mTouchPrediction > 0) {
+            // least-squares velocity over the previous sample and everything batched since
+            double st = 0, sx = 0, sy = 0, stt = 0, stx = 0, sty = 0;
+            int n = history + 2;
+            for (int i = -1; i <= history; i++) {
+                long t;
+                float px, py;
+                if (i < 0) {
+                    t = mLastTouchTime;
+                    px = mLastTouchX;
+                    py = mLastTouchY;
+                } else if (i < history) {
+                    t = event.getHistoricalEventTime(i);
+                    px = event.getHistoricalX(i);
+                    py = event.getHistoricalY(i);
+                } else {
+                    t = time;
+                    px = x;
+                    py = y;
+                }
+                double dt = t - time;
+                st += dt;
+                sx += px;
+                sy += py;
+                stt += dt * dt;
+                stx += dt * px;
+                sty += dt * py;
             }
-        }
-        if (checkPoints(mEdgeMidPoints)) {
-            for (Point p : mEdgeMidPoints) {
-                if (isTouchPoint(p, event)) return p;
+            double denominator = n * stt - st * st;
+            if (denominator > 0) {
+                double dx = (n * stx - st * sx) / denominator * mTouchPrediction;
+                double dy = (n * sty - st * sy) / denominator * mTouchPrediction;
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                if (distance > mMaxPredictionDistance) {
+                    dx *= mMaxPredictionDistance / distance;
+                    dy *= mMaxPredictionDistance / distance;
+                }
+                targetX = (float) (x + dx);
+                targetY = (float) (y + dy);
             }
         }
-        return null;
+        mLastTouchX = x;
+        mLastTouchY = y;
+        mLastTouchTime = time;
+        dragTo(targetX, targetY, x, y);
     }
 
-    private boolean isTouchPoint(Point p, MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-        float px = getViewPointX(p);
-        float py = getViewPointY(p);
-        double distance = Math.sqrt(Math.pow(x - px, 2) + Math.pow(y - py, 2));
-        return distance < dp2px(TOUCH_POINT_CATCH_DISTANCE);
+    // drags to (x, y), or to (fallbackX, fallbackY) if the drag limit rejects it
+    private void dragTo(float x, float y, float fallbackX, float fallbackY) {
+        mDirtyRect.setEmpty();
+        addDragBounds(mDraggingIndex);
+        mSavedCropPoints = copyCropPoints(mSavedCropPoints);
+        toImagePointSize(mDraggingIndex, x, y);
+        if (!cropPointsDiffer(mSavedCropPoints) && (x != fallbackX || y != fallbackY)) {
+            toImagePointSize(mDraggingIndex, fallbackX, fallbackY);
+        }
+        if (cropPointsDiffer(mSavedCropPoints)) {
+            addDragBounds(mDraggingIndex);
+            invalidateDragArea();
+            schedulePreview();
+        }
     }
 
-    private void toImagePointSize(Point dragPoint, MotionEvent event) {
-        if (dragPoint == null) {
+    // view bounds of the corners whose adjacent edges, handles and mask change with dragPoint
+    private void addDragBounds(int dragIndex) {
+        int count = getPointCount();
+        if (dragIndex < 0 || count == 0) {
             return;
         }
-
-        DragPointType pointType = getPointType(dragPoint);
-
-        int x = (int) ((Math.min(Math.max(event.getX(), mActLeft), mActLeft + mActWidth) - mActLeft) / mScaleX);
-        int y = (int) ((Math.min(Math.max(event.getY(), mActTop), mActTop + mActHeight) - mActTop) / mScaleY);
-
-        if (mDragLimit && pointType != null) {
-            switch (pointType) {
-                case LEFT_TOP:
-                    if (!canMoveLeftTop(x, y)) return;
-                    break;
-                case RIGHT_TOP:
-                    if (!canMoveRightTop(x, y)) return;
-                    break;
-                case RIGHT_BOTTOM:
-                    if (!canMoveRightBottom(x, y)) return;
-                    break;
-                case LEFT_BOTTOM:
-                    if (!canMoveLeftBottom(x, y)) return;
-                    break;
-                case TOP:
-                    if (!canMoveLeftTop(x, y) || !canMoveRightTop(x, y)) return;
-                    break;
-                case RIGHT:
-                    if (!canMoveRightTop(x, y) || !canMoveRightBottom(x, y)) return;
-                    break;
-                case BOTTOM:
-                    if (!canMoveLeftBottom(x, y) || !canMoveRightBottom(x, y)) return;
-                    break;
-                case LEFT:
-                    if (!canMoveLeftBottom(x, y) || !canMoveLeftTop(x, y)) return;
-                    break;
-                default:
-                    break;
-            }
-        }
-
-        if (DragPointType.isEdgePoint(pointType)) {
-            int xoff = x - dragPoint.x;
-            int yoff = y - dragPoint.y;
-            moveEdge(pointType, xoff, yoff);
+        int[] bounds = mDragBounds;
+        OverlayGeometry.getDragBounds(mCropPoints, count, dragIndex, mScaleX, mScaleY, mActLeft, mActTop, bounds);
+        if (mDirtyRect.isEmpty()) {
+            mDirtyRect.set(bounds[0], bounds[1], bounds[2], bounds[3]);
         } else {
-            dragPoint.y = y;
-            dragPoint.x = x;
+            mDirtyRect.union(bounds[0], bounds[1], bounds[2], bounds[3]);
         }
     }
 
-    private void moveEdge(DragPointType type, int xoff, int yoff) {
-        switch (type) {
-            case TOP:
-                movePoint(mCropPoints[P_LT], 0, yoff);
-                movePoint(mCropPoints[P_RT], 0, yoff);
-                break;
-            case RIGHT:
-                movePoint(mCropPoints[P_RT], xoff, 0);
-                movePoint(mCropPoints[P_RB], xoff, 0);
-                break;
-            case BOTTOM:
-                movePoint(mCropPoints[P_LB], 0, yoff);
-                movePoint(mCropPoints[P_RB], 0, yoff);
-                break;
-            case LEFT:
-                movePoint(mCropPoints[P_LT], xoff, 0);
-                movePoint(mCropPoints[P_LB], xoff, 0);
-                break;
-            default:
-                break;
+    private void invalidateDragArea() {
+        if (mDirtyRect.isEmpty()) {
+            return;
+        }
+        int extent = (int) Math.ceil(mPointRadius + Math.max(mPointWidth, mLineWidth)) + 1;
+        mDirtyRect.inset(-extent, -extent);
+        invalidate(mDirtyRect);
+        if (mShowMagnifier) {
+            int size = getWidth() / 4 + 1;
+            invalidate(0, 0, size, size);
+            invalidate(getWidth() - size, 0, getWidth(), size);
         }
     }
 
-    private void movePoint(Point point, int xoff, int yoff) {
-        if (point == null) return;
-        int x = point.x + xoff;
-        int y = point.y + yoff;
-        if (x < 0 || x > getDrawable().getIntrinsicWidth()) return;
-        if (y < 0 || y > getDrawable().getIntrinsicHeight()) return;
-        point.x = x;
-        point.y = y;
+    // reuses dst unless the point count changed
+    private float[] copyCropPoints(float[] dst) {
+        if (dst.length != mCropPoints.length) {
+            dst = new float[mCropPoints.length];
+        }
+        System.arraycopy(mCropPoints, 0, dst, 0, dst.length);
+        return dst;
     }
 
-    private boolean canMoveLeftTop(int x, int y) {
-        if (pointSideLine(mCropPoints[P_RT], mCropPoints[P_LB], x, y)
-                * pointSideLine(mCropPoints[P_RT], mCropPoints[P_LB], mCropPoints[P_RB]) > 0) {
+    private boolean cropPointsDiffer(float[] saved) {
+        if (mCropPoints == null) {
             return false;
         }
-        if (pointSideLine(mCropPoints[P_RT], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_RT], mCropPoints[P_RB], mCropPoints[P_LB]) < 0) {
-            return false;
+        if (saved.length != mCropPoints.length) {
+            return true;
         }
-        return pointSideLine(mCropPoints[P_LB], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_LB], mCropPoints[P_RB], mCropPoints[P_RT]) >= 0;
+        for (int i = 0; i < saved.length; i++) {
+            if (saved[i] != mCropPoints[i]) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private boolean canMoveRightTop(int x, int y) {
-        if (pointSideLine(mCropPoints[P_LT], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_RB], mCropPoints[P_LB]) > 0) {
-            return false;
-        }
-        if (pointSideLine(mCropPoints[P_LT], mCropPoints[P_LB], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_LB], mCropPoints[P_RB]) < 0) {
-            return false;
+    private int getNearbyPoint(MotionEvent event) {
+        ensureGeometry();
+        if (!mViewPointsValid) {
+            return -1;
         }
-        return pointSideLine(mCropPoints[P_LB], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_LB], mCropPoints[P_RB], mCropPoints[P_LT]) >= 0;
+        return mHandleGrid.find(mViewPoints, event.getX(), event.getY(), mTouchCatchDistance);
     }
 
-    private boolean canMoveRightBottom(int x, int y) {
-        if (pointSideLine(mCropPoints[P_RT], mCropPoints[P_LB], x, y)
-                * pointSideLine(mCropPoints[P_RT], mCropPoints[P_LB], mCropPoints[P_LT]) > 0) {
-            return false;
-        }
-        if (pointSideLine(mCropPoints[P_LT], mCropPoints[P_RT], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_RT], mCropPoints[P_LB]) < 0) {
-            return false;
+    // image position of the dragged handle, edge mid points are derived from their corners
+    private float getDraggingX() {
+        int count = getPointCount();
+        if (mDraggingIndex < count) {
+            return mCropPoints[mDraggingIndex * 2];
         }
-        return pointSideLine(mCropPoints[P_LT], mCropPoints[P_LB], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_LB], mCropPoints[P_RT]) >= 0;
+        int i = mDraggingIndex - count;
+        return (mCropPoints[i * 2] + mCropPoints[(i + 1) % count * 2]) / 2;
     }
 
-    private boolean canMoveLeftBottom(int x, int y) {
-        if (pointSideLine(mCropPoints[P_LT], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_RB], mCropPoints[P_RT]) > 0) {
-            return false;
-        }
-        if (pointSideLine(mCropPoints[P_LT], mCropPoints[P_RT], x, y)
-                * pointSideLine(mCropPoints[P_LT], mCropPoints[P_RT], mCropPoints[P_RB]) < 0) {
-            return false;
+    private float getDraggingY() {
+        int count = getPointCount();
+        if (mDraggingIndex < count) {
+            return mCropPoints[mDraggingIndex * 2 + 1];
         }
-        return pointSideLine(mCropPoints[P_RT], mCropPoints[P_RB], x, y)
-                * pointSideLine(mCropPoints[P_RT], mCropPoints[P_RB], mCropPoints[P_LT]) >= 0;
+        int i = mDraggingIndex - count;
+        return (mCropPoints[i * 2 + 1] + mCropPoints[(i + 1) % count * 2 + 1]) / 2;
     }
 
-    private DragPointType getPointType(Point dragPoint) {
-        if (dragPoint == null) return null;
-
-        DragPointType type;
-        if (checkPoints(mCropPoints)) {
-            for (int i = 0; i < mCropPoints.length; i++) {
-                if (dragPoint == mCropPoints[i]) {
-                    type = DragPointType.values()[i];
-                    return type;
-                }
-            }
+    private void toImagePointSize(int dragIndex, float viewX, float viewY) {
+        if (dragIndex < 0 || mCropPoints == null) {
+            return;
         }
-        if (checkPoints(mEdgeMidPoints)) {
-            for (int i = 0; i < mEdgeMidPoints.length; i++) {
-                if (dragPoint == mEdgeMidPoints[i]) {
-                    type = DragPointType.values()[4 + i];
-                    return type;
-                }
-            }
+
+        float x = OverlayGeometry.toImage(viewX, mScaleX, mActLeft, mActWidth);
+        float y = OverlayGeometry.toImage(viewY, mScaleY, mActTop, mActHeight);
+
+        int count = getPointCount();
+        if (dragIndex < count && snapToEdge(x, y)) {
+            x = mSnapPoint[0];
+            y = mSnapPoint[1];
         }
-        return null;
+        CropGeometry.moveHandle(mCropPoints, count, dragIndex, x, y, mDragLimit, getImageWidth(), getImageHeight());
     }
 
-    private float getViewPointX(Point point) {
-        return getViewPointX(point.x);
+    // snaps the image point (x, y) into mSnapPoint
+    private boolean snapToEdge(float x, float y) {
+        GradientField field = mGradientField;
+        if (!mEdgeSnap || field == null) {
+            return false;
+        }
+        return OverlayGeometry.snap(field, x, y, mEdgeSnapDistance, mScaleX, getImageWidth(), getImageHeight(),
+                MAX_SNAP_RADIUS, mSnapPoint);
     }
 
-    private float getViewPointX(float x) {
-        return x * mScaleX + mActLeft;
+    private float dp2px(float dp) {
+        return dp * mDensity;
     }
 
-    private float getViewPointY(Point point) {
-        return getViewPointY(point.y);
+    private float[] getFullImgCropPoints() {
+        if (getDrawable() == null) {
+            return null;
+        }
+        float width = getImageWidth();
+        float height = getImageHeight();
+        return new float[]{0, 0, width, 0, width, height, 0, height};
     }
 
-    private float getViewPointY(float y) {
-        return y * mScaleY + mActTop;
+    public double getPointsDistance(float x1, float y1, float x2, float y2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
     }
 
-    private float dp2px(float dp) {
-        return dp * mDensity;
-    }
+    private class CropTask extends FutureTask<Bitmap> {
 
-    private Point[] getFullImgCropPoints() {
-        Point[] points = new Point[4];
-        Drawable drawable = getDrawable();
-        if (drawable != null) {
-            int width = drawable.getIntrinsicWidth();
-            int height = drawable.getIntrinsicHeight();
-            points[0] = new Point(0, 0);
-            points[1] = new Point(width, 0);
-            points[2] = new Point(width, height);
-            points[3] = new Point(0, height);
+        private final OnCropListener mListener;
+        private final CropCallable mCallable;
+
+        CropTask(CropCallable callable, OnCropListener listener) {
+            super(callable);
+            callable.mTask = this;
+            mCallable = callable;
+            mListener = listener;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                // a crop cancelled before it started never reads its bitmap
+                mCallable.finishReading();
+                return;
+            }
+            Bitmap result = null;
+            try {
+                result = get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w("TAG", "crop failed", e);
+            }
+            final Bitmap bitmap = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPendingCrop != CropTask.this || isCancelled()) {
+                        return;
+                    }
+                    mPendingCrop = null;
+                    if (mListener != null) {
+                        mListener.onCropFinished(bitmap);
+                    }
+                }
+            });
         }
-        return points;
     }
 
-    public double getPointsDistance(float x1, float y1, float x2, float y2) {
-        return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    private class CropCallable implements Callable<Bitmap> {
+
+        private final Bitmap mBitmap;
+        private final TiledImageSource mSource;
+        private final float[] mPoints;
+        private final int mQuality;
+        private final int mEnhancement;
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+        volatile Future<?> mTask;
+
+        CropCallable(Bitmap bitmap, TiledImageSource source, float[] points, int quality, int enhancement) {
+            mBitmap = bitmap;
+            mSource = source;
+            mPoints = points;
+            mQuality = quality;
+            mEnhancement = enhancement;
+        }
+
+        @Override
+        public Bitmap call() {
+            if (mPoints == null || !mStarted.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return mTask.isCancelled() ? null : cropCached(mBitmap, mSource, mPoints, mQuality, mEnhancement, mTask);
+            } finally {
+                postReleaseBitmap(mBitmap);
+            }
+        }
+
+        void finishReading() {
+            if (mPoints != null && mStarted.compareAndSet(false, true)) {
+                postReleaseBitmap(mBitmap);
+            }
+        }
     }
 }
@@ -0,0 +1,107 @@
+/**
+ * Android-free math of the crop overlay: mapping between image and view coordinates, edge
+ * snapping in view terms, and which handles a drag moves. The image is shown scaled by
+ * {@code scale} view px per image px with its first pixel at view px {@code start}, and is
+ * {@code length} view px long on that axis.
+ * <p>
+ * Handles are packed as in the view: {@code count} vertices followed by the mid points of the
+ * {@code count} edges, edge i running from vertex i to vertex i + 1.
+ */
+public final class OverlayGeometry {
+
+    private OverlayGeometry() {
+    }
+
+    public static float toView(float image, float scale, int start) {
+        return image * scale + start;
+    }
+
+    /**
+     * Image coordinate of the view coordinate {@code view}, clamped to the shown image.
+     */
+    public static float toImage(float view, float scale, int start, int length) {
+        return (Math.min(Math.max(view, start), start + length) - start) / scale;
+    }
+
+    /**
+     * Writes the view positions of the {@code count} vertices of {@code points} and of their edge
+     * mid points into {@code viewPoints}; {@code midPoints} receives the mid points in image
+     * coordinates.
+     */
+    public static void toView(float[] points, int count, float scaleX, float scaleY, int left, int top,
+                              float[] midPoints, float[] viewPoints) {
+        CropGeometry.getEdgeMidPoints(points, count, midPoints);
+        for (int i = 0; i < count; i++) {
+            viewPoints[i * 2] = toView(points[i * 2], scaleX, left);
+            viewPoints[i * 2 + 1] = toView(points[i * 2 + 1], scaleY, top);
+            viewPoints[(count + i) * 2] = toView(midPoints[i * 2], scaleX, left);
+            viewPoints[(count + i) * 2 + 1] = toView(midPoints[i * 2 + 1], scaleY, top);
+        }
+    }
+
+    /**
+     * Snaps the image point (x, y) onto the strongest edge of {@code field}, a downscaled
+     * gradient field of the image, within {@code distance} view px but at most
+     * {@code maxRadius} field px. Writes the image point into {@code out} and returns true if
+     * there was an edge.
+     */
+    public static boolean snap(GradientField field, float x, float y, float distance, float scale,
+                               int imageWidth, int imageHeight, int maxRadius, float[] out) {
+        float fieldScaleX = (float) field.getWidth() / imageWidth;
+        float fieldScaleY = (float) field.getHeight() / imageHeight;
+        int radius = Math.round(distance / scale * fieldScaleX);
+        radius = Math.min(Math.max(radius, 1), maxRadius);
+        if (!field.snap(x * fieldScaleX, y * fieldScaleY, radius, true, out)) {
+            return false;
+        }
+        out[0] = Math.min(Math.max(out[0] / fieldScaleX, 0), imageWidth);
+        out[1] = Math.min(Math.max(out[1] / fieldScaleY, 0), imageHeight);
+        return true;
+    }
+
+    /**
+     * Whether dragging handle {@code dragIndex} moves {@code vertex}: a vertex drag moves that
+     * vertex, an edge drag both ends of the edge.
+     */
+    public static boolean isMovingVertex(int dragIndex, int vertex, int count) {
+        int first = dragIndex < count ? dragIndex : dragIndex - count;
+        int moving = dragIndex < count ? 1 : 2;
+        return (vertex - first + count) % count < moving;
+    }
+
+    public static boolean isMovingEdge(int dragIndex, int edge, int count) {
+        return isMovingVertex(dragIndex, edge, count) || isMovingVertex(dragIndex, (edge + 1) % count, count);
+    }
+
+    /**
+     * Writes {@code {left, top, right, bottom}}, in whole view px, of the vertices whose adjacent
+     * edges, handles and mask change when handle {@code dragIndex} moves.
+     */
+    public static void getDragBounds(float[] points, int count, int dragIndex, float scaleX, float scaleY,
+                                     int left, int top, int[] out) {
+        int first, last;
+        if (dragIndex >= count) {
+            first = dragIndex - count - 1;
+            last = dragIndex - count + 2;
+        } else {
+            first = dragIndex - 1;
+            last = dragIndex + 1;
+        }
+        for (int i = first; i <= last; i++) {
+            int p = (i + count) % count;
+            int x = (int) toView(points[p * 2], scaleX, left);
+            int y = (int) toView(points[p * 2 + 1], scaleY, top);
+            if (i == first) {
+                out[0] = x;
+                out[1] = y;
+                out[2] = x + 1;
+                out[3] = y + 1;
+            } else {
+                out[0] = Math.min(out[0], x);
+                out[1] = Math.min(out[1], y);
+                out[2] = Math.max(out[2], x + 1);
+                out[3] = Math.max(out[3], y + 1);
+            }
+        }
+    }
+}
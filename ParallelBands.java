@@ -0,0 +1,123 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits a row range into horizontal bands and runs them on a shared, bounded worker pool.
+ * The calling thread takes part in the work, so nested or saturated use never deadlocks.
+ */
+public final class ParallelBands {
+
+    public interface Band {
+        void run(int rowStart, int rowEnd);
+    }
+
+    private static final int MIN_BAND_ROWS = 16;
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final int MAX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static volatile ExecutorService sExecutor;
+
+    private ParallelBands() {
+    }
+
+    public static int getMaxParallelism() {
+        return MAX_THREADS;
+    }
+
+    public static void run(final int rows, int parallelism, final Band band) {
+        parallelism = Math.min(parallelism, MAX_THREADS);
+        if (parallelism <= 1 || rows < MIN_BAND_ROWS * 2) {
+            band.run(0, rows);
+            return;
+        }
+        final int bandRows = Math.max(MIN_BAND_ROWS, (rows + parallelism * BANDS_PER_THREAD - 1) / (parallelism * BANDS_PER_THREAD));
+        final int bandCount = (rows + bandRows - 1) / bandRows;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(bandCount);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < bandCount) {
+                    try {
+                        if (error.get() == null) {
+                            int start = i * bandRows;
+                            band.run(start, Math.min(rows, start + bandRows));
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        ExecutorService executor = getExecutor();
+        int helpers = Math.min(parallelism, bandCount) - 1;
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(worker);
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // bands nobody claimed yet never run; the ones in flight still write the caller's
+            // buffers, so wait them out before handing those back
+            error.compareAndSet(null, e);
+            for (int i = Math.min(next.getAndSet(bandCount), bandCount); i < bandCount; i++) {
+                done.countDown();
+            }
+            awaitUninterruptibly(done);
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = error.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // the caller restores the interrupt
+            }
+        }
+    }
+
+    private static ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            synchronized (ParallelBands.class) {
+                if (sExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "crop-band-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sExecutor = executor;
+                }
+            }
+        }
+        return sExecutor;
+    }
+}
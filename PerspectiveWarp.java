@@ -0,0 +1,345 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quad-to-rectangle perspective warp on packed ARGB pixel rows.
+ * <p>
+ * Quads are packed as {@code {ltX, ltY, rtX, rtY, rbX, rbY, lbX, lbY}} in source pixel space.
+ */
+public final class PerspectiveWarp {
+
+    public static final int QUALITY_NEAREST = 0;
+    public static final int QUALITY_BILINEAR = 1;
+
+    private PerspectiveWarp() {
+    }
+
+    public static int getOutputWidth(float[] quad) {
+        double top = distance(quad[0], quad[1], quad[2], quad[3]);
+        double bottom = distance(quad[6], quad[7], quad[4], quad[5]);
+        return Math.max(1, (int) Math.round(Math.max(top, bottom)));
+    }
+
+    public static int getOutputHeight(float[] quad) {
+        double left = distance(quad[0], quad[1], quad[6], quad[7]);
+        double right = distance(quad[2], quad[3], quad[4], quad[5]);
+        return Math.max(1, (int) Math.round(Math.max(left, right)));
+    }
+
+    /**
+     * Returns the 3x3 row-major transform that maps a destination pixel (x, y) to the
+     * homogeneous source position of its center, already shifted so that X/W and Y/W
+     * address source pixel centers.
+     */
+    public static double[] computeTransform(float[] quad, int dstWidth, int dstHeight) {
+        return computeTransform(quad, dstWidth, dstHeight, new double[9]);
+    }
+
+    public static double[] computeTransform(float[] quad, int dstWidth, int dstHeight, double[] m) {
+        double x0 = quad[0], y0 = quad[1];
+        double x1 = quad[2], y1 = quad[3];
+        double x2 = quad[4], y2 = quad[5];
+        double x3 = quad[6], y3 = quad[7];
+
+        // unit square -> quad (Heckbert)
+        double a, b, c, d, e, f, g, h;
+        double dx3 = x0 - x1 + x2 - x3;
+        double dy3 = y0 - y1 + y2 - y3;
+        if (dx3 == 0 && dy3 == 0) {
+            a = x1 - x0;
+            b = x2 - x1;
+            d = y1 - y0;
+            e = y2 - y1;
+            g = 0;
+            h = 0;
+        } else {
+            double dx1 = x1 - x2, dx2 = x3 - x2;
+            double dy1 = y1 - y2, dy2 = y3 - y2;
+            double det = dx1 * dy2 - dx2 * dy1;
+            g = (dx3 * dy2 - dx2 * dy3) / det;
+            h = (dx1 * dy3 - dx3 * dy1) / det;
+            a = x1 - x0 + g * x1;
+            b = x3 - x0 + h * x3;
+            d = y1 - y0 + g * y1;
+            e = y3 - y0 + h * y3;
+        }
+        c = x0;
+        f = y0;
+
+        // destination pixel center -> unit square: u = (x + 0.5) / dstWidth, v = (y + 0.5) / dstHeight
+        double su = 1.0 / dstWidth, sv = 1.0 / dstHeight;
+        m[0] = a * su;
+        m[1] = b * sv;
+        m[2] = c + 0.5 * (m[0] + m[1]);
+        m[3] = d * su;
+        m[4] = e * sv;
+        m[5] = f + 0.5 * (m[3] + m[4]);
+        m[6] = g * su;
+        m[7] = h * sv;
+        m[8] = 1 + 0.5 * (m[6] + m[7]);
+        // address source pixel centers: X/W - 0.5 == (X - 0.5W)/W
+        for (int i = 0; i < 3; i++) {
+            m[i] -= 0.5 * m[6 + i];
+            m[3 + i] -= 0.5 * m[6 + i];
+        }
+        return m;
+    }
+
+    /**
+     * Writes the source pixel bounds {@code {left, top, right, bottom}} read by destination rows
+     * [rowStart, rowEnd) to {@code out}, right and bottom exclusive and not clipped to the source.
+     */
+    public static int[] getSourceBounds(double[] m, int dstWidth, int rowStart, int rowEnd, int[] out) {
+        return getSourceBounds(m, 0, dstWidth, rowStart, rowEnd, out);
+    }
+
+    /**
+     * Like {@link #getSourceBounds(double[], int, int, int, int[])}, for destination columns
+     * [colStart, colEnd) only.
+     */
+    public static int[] getSourceBounds(double[] m, int colStart, int colEnd, int rowStart, int rowEnd, int[] out) {
+        double left = Double.MAX_VALUE, top = Double.MAX_VALUE;
+        double right = -Double.MAX_VALUE, bottom = -Double.MAX_VALUE;
+        // rows and columns map to lines, so the corners bound the whole block
+        for (int i = 0; i < 4; i++) {
+            int x = (i & 1) == 0 ? colStart : colEnd - 1;
+            int y = (i & 2) == 0 ? rowStart : rowEnd - 1;
+            double w = m[6] * x + m[7] * y + m[8];
+            double sx = (m[0] * x + m[1] * y + m[2]) / w;
+            double sy = (m[3] * x + m[4] * y + m[5]) / w;
+            left = Math.min(left, sx);
+            right = Math.max(right, sx);
+            top = Math.min(top, sy);
+            bottom = Math.max(bottom, sy);
+        }
+        // a pixel of slack either way for the rounding of positions stepped to by the warps
+        out[0] = (int) Math.floor(left) - 1;
+        out[1] = (int) Math.floor(top) - 1;
+        out[2] = (int) Math.ceil(right) + 2;
+        out[3] = (int) Math.ceil(bottom) + 2;
+        return out;
+    }
+
+    /**
+     * Splits destination columns [colStart, colEnd) and rows [rowStart, rowEnd) in halves along
+     * the longer side until the source window of every block holds at most {@code maxPixels}
+     * pixels, or the block is a single pixel. Rotated quads read a window far larger than their
+     * rows otherwise. Each block is {@code {left, top, width, height, colStart, colEnd, rowStart,
+     * rowEnd}}, its window clipped to the image but never empty.
+     */
+    public static List<int[]> splitWindows(double[] m, int imageWidth, int imageHeight, int colStart, int colEnd,
+                                           int rowStart, int rowEnd, long maxPixels) {
+        List<int[]> blocks = new ArrayList<>();
+        splitWindows(m, imageWidth, imageHeight, colStart, colEnd, rowStart, rowEnd, maxPixels, blocks);
+        return blocks;
+    }
+
+    private static void splitWindows(double[] m, int imageWidth, int imageHeight, int colStart, int colEnd,
+                                     int rowStart, int rowEnd, long maxPixels, List<int[]> blocks) {
+        int[] block = getSourceBounds(m, colStart, colEnd, rowStart, rowEnd, new int[8]);
+        int left = Math.min(Math.max(block[0], 0), imageWidth - 1);
+        int top = Math.min(Math.max(block[1], 0), imageHeight - 1);
+        block[2] = Math.max(Math.min(block[2], imageWidth), left + 1) - left;
+        block[3] = Math.max(Math.min(block[3], imageHeight), top + 1) - top;
+        block[0] = left;
+        block[1] = top;
+        int cols = colEnd - colStart, rows = rowEnd - rowStart;
+        if ((long) block[2] * block[3] > maxPixels && (cols > 1 || rows > 1)) {
+            if (cols >= rows) {
+                int mid = colStart + cols / 2;
+                splitWindows(m, imageWidth, imageHeight, colStart, mid, rowStart, rowEnd, maxPixels, blocks);
+                splitWindows(m, imageWidth, imageHeight, mid, colEnd, rowStart, rowEnd, maxPixels, blocks);
+            } else {
+                int mid = rowStart + rows / 2;
+                splitWindows(m, imageWidth, imageHeight, colStart, colEnd, rowStart, mid, maxPixels, blocks);
+                splitWindows(m, imageWidth, imageHeight, colStart, colEnd, mid, rowEnd, maxPixels, blocks);
+            }
+            return;
+        }
+        block[4] = colStart;
+        block[5] = colEnd;
+        block[6] = rowStart;
+        block[7] = rowEnd;
+        blocks.add(block);
+    }
+
+    /**
+     * Shifts the transform so that it addresses a source window whose first pixel is source
+     * pixel (left, top).
+     */
+    public static double[] offsetSource(double[] m, int left, int top) {
+        for (int i = 0; i < 3; i++) {
+            m[i] -= left * m[6 + i];
+            m[3 + i] -= top * m[6 + i];
+        }
+        return m;
+    }
+
+    public static void warp(int[] src, int srcWidth, int srcHeight, double[] m,
+                            int[] dst, int dstOffset, int dstWidth, int rowStart, int rowEnd, int quality) {
+        warp(src, srcWidth, srcHeight, m, dst, dstOffset, dstWidth, 0, dstWidth, rowStart, rowEnd, quality);
+    }
+
+    public static void warp(int[] src, int srcWidth, int srcHeight, double[] m, int[] dst, int dstOffset,
+                            int dstStride, int colStart, int colEnd, int rowStart, int rowEnd, int quality) {
+        if (quality == QUALITY_NEAREST) {
+            warpNearest(src, srcWidth, srcHeight, m, dst, dstOffset, dstStride, colStart, colEnd, rowStart, rowEnd);
+        } else {
+            warp(src, srcWidth, srcHeight, m, dst, dstOffset, dstStride, colStart, colEnd, rowStart, rowEnd);
+        }
+    }
+
+    /**
+     * Warps destination rows [rowStart, rowEnd) with bilinear sampling. Row {@code rowStart} is
+     * written at {@code dst[dstOffset]}. Each row is evaluated from the transform independently,
+     * so the result does not depend on how rows are split between calls.
+     */
+    public static void warp(int[] src, int srcWidth, int srcHeight, double[] m,
+                            int[] dst, int dstOffset, int dstWidth, int rowStart, int rowEnd) {
+        warp(src, srcWidth, srcHeight, m, dst, dstOffset, dstWidth, 0, dstWidth, rowStart, rowEnd);
+    }
+
+    /**
+     * Warps destination columns [colStart, colEnd) of rows [rowStart, rowEnd). Pixel (colStart,
+     * rowStart) is written at {@code dst[dstOffset]}, rows {@code dstStride} apart.
+     */
+    public static void warp(int[] src, int srcWidth, int srcHeight, double[] m, int[] dst, int dstOffset,
+                            int dstStride, int colStart, int colEnd, int rowStart, int rowEnd) {
+        final int maxX = srcWidth - 1;
+        final int maxY = srcHeight - 1;
+        final double m0 = m[0], m3 = m[3], m6 = m[6];
+        for (int y = rowStart; y < rowEnd; y++) {
+            double sx = m0 * colStart + m[1] * y + m[2];
+            double sy = m3 * colStart + m[4] * y + m[5];
+            double sw = m6 * colStart + m[7] * y + m[8];
+            int out = dstOffset + (y - rowStart) * dstStride;
+            for (int x = colStart; x < colEnd; x++, sx += m0, sy += m3, sw += m6) {
+                double iw = 1.0 / sw;
+                double fx = sx * iw;
+                double fy = sy * iw;
+
+                int ix0, ix1, wx;
+                if (fx <= 0) {
+                    ix0 = ix1 = 0;
+                    wx = 0;
+                } else if (fx >= maxX) {
+                    ix0 = ix1 = maxX;
+                    wx = 0;
+                } else {
+                    ix0 = (int) fx;
+                    ix1 = ix0 + 1;
+                    wx = (int) ((fx - ix0) * 256);
+                }
+                int iy0, iy1, wy;
+                if (fy <= 0) {
+                    iy0 = iy1 = 0;
+                    wy = 0;
+                } else if (fy >= maxY) {
+                    iy0 = iy1 = maxY;
+                    wy = 0;
+                } else {
+                    iy0 = (int) fy;
+                    iy1 = iy0 + 1;
+                    wy = (int) ((fy - iy0) * 256);
+                }
+                int row0 = iy0 * srcWidth;
+                int row1 = iy1 * srcWidth;
+                int top = lerp(src[row0 + ix0], src[row0 + ix1], wx);
+                int bottom = lerp(src[row1 + ix0], src[row1 + ix1], wx);
+                dst[out++] = lerp(top, bottom, wy);
+            }
+        }
+    }
+
+    public static void warpNearest(int[] src, int srcWidth, int srcHeight, double[] m,
+                                   int[] dst, int dstOffset, int dstWidth, int rowStart, int rowEnd) {
+        warpNearest(src, srcWidth, srcHeight, m, dst, dstOffset, dstWidth, 0, dstWidth, rowStart, rowEnd);
+    }
+
+    public static void warpNearest(int[] src, int srcWidth, int srcHeight, double[] m, int[] dst, int dstOffset,
+                                   int dstStride, int colStart, int colEnd, int rowStart, int rowEnd) {
+        final int maxX = srcWidth - 1;
+        final int maxY = srcHeight - 1;
+        final double m0 = m[0], m3 = m[3], m6 = m[6];
+        for (int y = rowStart; y < rowEnd; y++) {
+            double sx = m0 * colStart + m[1] * y + m[2];
+            double sy = m3 * colStart + m[4] * y + m[5];
+            double sw = m6 * colStart + m[7] * y + m[8];
+            int out = dstOffset + (y - rowStart) * dstStride;
+            for (int x = colStart; x < colEnd; x++, sx += m0, sy += m3, sw += m6) {
+                double iw = 1.0 / sw;
+                int ix = (int) (sx * iw + 0.5);
+                int iy = (int) (sy * iw + 0.5);
+                if (ix < 0) {
+                    ix = 0;
+                } else if (ix > maxX) {
+                    ix = maxX;
+                }
+                if (iy < 0) {
+                    iy = 0;
+                } else if (iy > maxY) {
+                    iy = maxY;
+                }
+                dst[out++] = src[iy * srcWidth + ix];
+            }
+        }
+    }
+
+    /**
+     * Like {@link #warp(int[], int, int, double[], int[], int, int, int, int, int)}, but writes the
+     * luma of every output pixel straight to {@code dst}, so enhancement can skip the ARGB
+     * intermediate.
+     */
+    public static void warpGray(int[] src, int srcWidth, int srcHeight, double[] m,
+                                byte[] dst, int dstOffset, int dstWidth, int rowStart, int rowEnd, int quality) {
+        warpGray(src, srcWidth, srcHeight, m, dst, dstOffset, dstWidth, 0, dstWidth, rowStart, rowEnd, quality);
+    }
+
+    public static void warpGray(int[] src, int srcWidth, int srcHeight, double[] m, byte[] dst, int dstOffset,
+                                int dstStride, int colStart, int colEnd, int rowStart, int rowEnd, int quality) {
+        final int maxX = srcWidth - 1;
+        final int maxY = srcHeight - 1;
+        final double m0 = m[0], m3 = m[3], m6 = m[6];
+        final boolean nearest = quality == QUALITY_NEAREST;
+        for (int y = rowStart; y < rowEnd; y++) {
+            double sx = m0 * colStart + m[1] * y + m[2];
+            double sy = m3 * colStart + m[4] * y + m[5];
+            double sw = m6 * colStart + m[7] * y + m[8];
+            int out = dstOffset + (y - rowStart) * dstStride;
+            for (int x = colStart; x < colEnd; x++, sx += m0, sy += m3, sw += m6) {
+                double iw = 1.0 / sw;
+                double fx = sx * iw;
+                double fy = sy * iw;
+                int c;
+                if (nearest) {
+                    int ix = Math.min(Math.max((int) (fx + 0.5), 0), maxX);
+                    int iy = Math.min(Math.max((int) (fy + 0.5), 0), maxY);
+                    c = src[iy * srcWidth + ix];
+                } else {
+                    fx = Math.min(Math.max(fx, 0), maxX);
+                    fy = Math.min(Math.max(fy, 0), maxY);
+                    int ix0 = (int) fx, iy0 = (int) fy;
+                    int ix1 = Math.min(ix0 + 1, maxX), iy1 = Math.min(iy0 + 1, maxY);
+                    int wx = (int) ((fx - ix0) * 256), wy = (int) ((fy - iy0) * 256);
+                    int row0 = iy0 * srcWidth;
+                    int row1 = iy1 * srcWidth;
+                    c = lerp(lerp(src[row0 + ix0], src[row0 + ix1], wx), lerp(src[row1 + ix0], src[row1 + ix1], wx), wy);
+                }
+                dst[out++] = (byte) ((((c >> 16) & 0xFF) * 77 + ((c >> 8) & 0xFF) * 150 + (c & 0xFF) * 29) >> 8);
+            }
+        }
+    }
+
+    static int lerp(int c0, int c1, int w) {
+        int iw = 256 - w;
+        int rb = (((c0 & 0xFF00FF) * iw + (c1 & 0xFF00FF) * w) >>> 8) & 0xFF00FF;
+        int ag = (((c0 >>> 8) & 0xFF00FF) * iw + ((c1 >>> 8) & 0xFF00FF) * w) & 0xFF00FF00;
+        return ag | rb;
+    }
+
+    private static double distance(float x1, float y1, float x2, float y2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
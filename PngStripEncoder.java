@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming 8-bit RGB or RGBA PNG encoder. Rows are Sub-filtered and deflated as they arrive,
+ * so memory stays at one row plus one IDAT chunk.
+ */
+public class PngStripEncoder implements StripEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+
+    private final OutputStream mOut;
+    private final int mWidth, mHeight;
+    private final boolean mHasAlpha;
+    private final int mBytesPerPixel;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mHeader = new byte[8];
+    private int mChunkLength;
+    private int mRowsWritten;
+
+    public PngStripEncoder(OutputStream out, int width, int height, boolean hasAlpha) throws IOException {
+        this(out, width, height, hasAlpha, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public PngStripEncoder(OutputStream out, int width, int height, boolean hasAlpha, int level) throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mHasAlpha = hasAlpha;
+        mBytesPerPixel = hasAlpha ? 4 : 3;
+        mDeflater = new Deflater(level);
+        mRow = new byte[1 + width * mBytesPerPixel];
+        mRow[0] = FILTER_SUB;
+
+        mOut.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = (byte) (hasAlpha ? 6 : 2); // truecolor, with or without alpha
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        int bpp = mBytesPerPixel;
+        for (int r = 0; r < rows && mRowsWritten < mHeight; r++, mRowsWritten++) {
+            int in = offset + r * stride;
+            int out = 1;
+            for (int x = 0; x < mWidth; x++) {
+                int c = pixels[in + x];
+                mRow[out++] = (byte) (c >> 16);
+                mRow[out++] = (byte) (c >> 8);
+                mRow[out++] = (byte) c;
+                if (mHasAlpha) {
+                    mRow[out++] = (byte) (c >>> 24);
+                }
+            }
+            // Sub filter, back to front so every byte still sees its unfiltered left neighbour
+            for (int i = mRow.length - 1; i > bpp; i--) {
+                mRow[i] -= mRow[i - bpp];
+            }
+            mDeflater.setInput(mRow);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        if (mChunkLength > 0) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+        mDeflater.end();
+        writeChunk("IEND", mChunk, 0);
+        mOut.flush();
+    }
+
+    private void deflate() throws IOException {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        if (mChunkLength == CHUNK_SIZE) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        putInt(mHeader, 0, length);
+        for (int i = 0; i < 4; i++) {
+            mHeader[4 + i] = (byte) type.charAt(i);
+        }
+        mOut.write(mHeader, 0, 8);
+        mOut.write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(mHeader, 4, 4);
+        mCrc.update(data, 0, length);
+        putInt(mHeader, 0, (int) mCrc.getValue());
+        mOut.write(mHeader, 0, 4);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
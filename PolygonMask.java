@@ -0,0 +1,78 @@
+/**
+ * Scanline polygon masking on packed ARGB pixel rows.
+ * <p>
+ * Polygons are packed as {@code {x0, y0, x1, y1, ...}} in source pixel space. A pixel is inside
+ * when its center is, by the even-odd rule.
+ */
+public final class PolygonMask {
+
+    private PolygonMask() {
+    }
+
+    /**
+     * Writes the pixel bounds {@code {left, top, right, bottom}} of the polygon, clipped to
+     * {@code width} x {@code height}, to {@code out}. Right and bottom are exclusive.
+     */
+    public static int[] getBounds(float[] points, int count, int width, int height, int[] out) {
+        float left = points[0], top = points[1], right = left, bottom = top;
+        for (int i = 1; i < count; i++) {
+            left = Math.min(left, points[i * 2]);
+            right = Math.max(right, points[i * 2]);
+            top = Math.min(top, points[i * 2 + 1]);
+            bottom = Math.max(bottom, points[i * 2 + 1]);
+        }
+        out[0] = Math.min(Math.max((int) Math.floor(left), 0), width - 1);
+        out[1] = Math.min(Math.max((int) Math.floor(top), 0), height - 1);
+        out[2] = Math.max(Math.min((int) Math.ceil(right), width), out[0] + 1);
+        out[3] = Math.max(Math.min((int) Math.ceil(bottom), height), out[1] + 1);
+        return out;
+    }
+
+    /**
+     * Clears the pixels outside the polygon to transparent in rows [rowStart, rowEnd) of
+     * {@code pixels}, a {@code width} wide window whose first pixel is source pixel
+     * (left, top). Rows are independent, so bands can run in parallel.
+     */
+    public static void mask(int[] pixels, int width, int left, int top, float[] points, int count,
+                            int rowStart, int rowEnd) {
+        float[] crossings = new float[count];
+        for (int y = rowStart; y < rowEnd; y++) {
+            float cy = top + y + 0.5f;
+            int n = 0;
+            for (int i = 0, j = count - 1; i < count; j = i++) {
+                float yi = points[i * 2 + 1];
+                float yj = points[j * 2 + 1];
+                if ((yi <= cy) != (yj <= cy)) {
+                    float xi = points[i * 2];
+                    float x = xi + (cy - yi) / (yj - yi) * (points[j * 2] - xi);
+                    // insertion sort, crossings per row are few
+                    int k = n++;
+                    while (k > 0 && crossings[k - 1] > x) {
+                        crossings[k] = crossings[k - 1];
+                        k--;
+                    }
+                    crossings[k] = x;
+                }
+            }
+            int row = y * width;
+            int x = 0;
+            for (int k = 0; k + 1 < n; k += 2) {
+                // first and last column whose centers fall in [crossings[k], crossings[k + 1])
+                int start = Math.max(x, (int) Math.ceil(crossings[k] - left - 0.5f));
+                int end = Math.min(width, (int) Math.ceil(crossings[k + 1] - left - 0.5f));
+                if (start >= end) {
+                    continue;
+                }
+                clear(pixels, row + x, row + start);
+                x = end;
+            }
+            clear(pixels, row + x, row + width);
+        }
+    }
+
+    private static void clear(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.util.Arrays;
+
+/**
+ * Finds the dominant document quadrilateral in a small grayscale image.
+ * <p>
+ * The image is blurred, Sobel gradients are voted into a Hough accumulator along their own
+ * orientation, and the strongest near-horizontal and near-vertical lines are paired into
+ * candidate quads. Candidates must be convex, reasonably large and have edge support along
+ * all four sides. Instances reuse their buffers between calls and are not thread-safe.
+ */
+public final class QuadDetector {
+
+    public static final int DEFAULT_DETECT_SIZE = 320; // px, longest side
+
+    private static final int THETA_BINS = 180;
+    private static final int THETA_SPREAD = 4;
+    private static final int RHO_STEP = 2; // px
+    private static final int PEAK_RADIUS = 3;
+    private static final int MAX_LINES = 12; // per orientation
+    private static final int MIN_EDGE_THRESHOLD = 48;
+    private static final float EDGE_PERCENTILE = 0.80f;
+    private static final float MIN_AREA_RATIO = 0.15f;
+    private static final float MIN_SIDE_SUPPORT = 0.35f;
+    private static final float CORNER_MARGIN = 0.05f;
+
+    private static final float[] COS = new float[THETA_BINS];
+    private static final float[] SIN = new float[THETA_BINS];
+
+    static {
+        for (int i = 0; i < THETA_BINS; i++) {
+            COS[i] = (float) Math.cos(Math.PI * i / THETA_BINS);
+            SIN[i] = (float) Math.sin(Math.PI * i / THETA_BINS);
+        }
+    }
+
+    private int mWidth, mHeight;
+    private int[] mBlur;
+    private int[] mMagnitude;
+    private byte[] mTheta;
+    private byte[] mEdges;
+    private int[] mAccumulator;
+    private final int[] mHistogram = new int[2048];
+
+    private final int[] mLineTheta = new int[MAX_LINES * 2];
+    private final int[] mLineRho = new int[MAX_LINES * 2];
+    private final int[] mLineVotes = new int[MAX_LINES * 2];
+    private int mHorizontalCount, mVerticalCount;
+
+    private final float[] mCandidate = new float[8];
+
+    public static byte[] toGray(int[] argb, byte[] gray) {
+        for (int i = 0; i < argb.length; i++) {
+            int c = argb[i];
+            gray[i] = (byte) ((((c >> 16) & 0xFF) * 77 + ((c >> 8) & 0xFF) * 150 + (c & 0xFF) * 29) >> 8);
+        }
+        return gray;
+    }
+
+    /**
+     * Returns the packed quad {lt, rt, rb, lb} in the coordinates of {@code gray}, or null if
+     * no convincing document outline was found.
+     */
+    public float[] detect(byte[] gray, int width, int height) {
+        if (width < 16 || height < 16) {
+            return null;
+        }
+        ensureBuffers(width, height);
+        blur(gray);
+        int threshold = computeGradients();
+        vote(threshold);
+        findLines(Math.min(width, height) / 5);
+        if (mHorizontalCount < 2 || mVerticalCount < 2) {
+            return null;
+        }
+        return findBestQuad();
+    }
+
+    private void ensureBuffers(int width, int height) {
+        int size = width * height;
+        if (mBlur == null || mBlur.length < size) {
+            mBlur = new int[size];
+            mMagnitude = new int[size];
+            mTheta = new byte[size];
+            mEdges = new byte[size];
+        }
+        int accSize = THETA_BINS * (rhoMax(width, height) * 2 + 1);
+        if (mAccumulator == null || mAccumulator.length < accSize) {
+            mAccumulator = new int[accSize];
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    // in accumulator bins
+    private static int rhoMax(int width, int height) {
+        return (int) Math.ceil(Math.sqrt((double) width * width + (double) height * height) / RHO_STEP);
+    }
+
+    // separable [1 2 1] x [1 2 1], clamped at the borders
+    private void blur(byte[] gray) {
+        int w = mWidth, h = mHeight;
+        int[] out = mBlur;
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int l = gray[row + Math.max(x - 1, 0)] & 0xFF;
+                int c = gray[row + x] & 0xFF;
+                int r = gray[row + Math.min(x + 1, w - 1)] & 0xFF;
+                out[row + x] = l + 2 * c + r;
+            }
+        }
+        // vertical pass in place, one row of history
+        int[] prev = mMagnitude;
+        System.arraycopy(out, 0, prev, 0, w);
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            int next = Math.min(y + 1, h - 1) * w;
+            for (int x = 0; x < w; x++) {
+                int c = out[row + x];
+                int v = (prev[x] + 2 * c + out[next + x]) >> 4;
+                prev[x] = c;
+                out[row + x] = v;
+            }
+        }
+    }
+
+    private int computeGradients() {
+        int w = mWidth, h = mHeight;
+        int[] b = mBlur;
+        int[] mag = mMagnitude;
+        Arrays.fill(mHistogram, 0);
+        Arrays.fill(mag, 0, w * h, 0);
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                int i = y * w + x;
+                int tl = b[i - w - 1], t = b[i - w], tr = b[i - w + 1];
+                int l = b[i - 1], r = b[i + 1];
+                int bl = b[i + w - 1], bo = b[i + w], br = b[i + w + 1];
+                int gx = (tr + 2 * r + br) - (tl + 2 * l + bl);
+                int gy = (bl + 2 * bo + br) - (tl + 2 * t + tr);
+                int m = Math.abs(gx) + Math.abs(gy);
+                mag[i] = m;
+                mHistogram[Math.min(m, mHistogram.length - 1)]++;
+                if (m >= MIN_EDGE_THRESHOLD) {
+                    double angle = Math.atan2(gy, gx);
+                    if (angle < 0) {
+                        angle += Math.PI;
+                    }
+                    mTheta[i] = (byte) ((int) (angle * THETA_BINS / Math.PI) % THETA_BINS);
+                }
+            }
+        }
+        int target = (int) ((w - 2) * (h - 2) * EDGE_PERCENTILE);
+        int count = 0;
+        int threshold = mHistogram.length - 1;
+        for (int i = 0; i < mHistogram.length; i++) {
+            count += mHistogram[i];
+            if (count >= target) {
+                threshold = i;
+                break;
+            }
+        }
+        return Math.max(threshold, MIN_EDGE_THRESHOLD);
+    }
+
+    private void vote(int threshold) {
+        int w = mWidth, h = mHeight;
+        int rhoMax = rhoMax(w, h);
+        int rhoBins = rhoMax * 2 + 1;
+        int[] acc = mAccumulator;
+        Arrays.fill(acc, 0, THETA_BINS * rhoBins, 0);
+        Arrays.fill(mEdges, 0, w * h, (byte) 0);
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                int i = y * w + x;
+                if (mMagnitude[i] < threshold) {
+                    continue;
+                }
+                // dilated edge map for the side support test
+                for (int dy = -1; dy <= 1; dy++) {
+                    int row = i + dy * w;
+                    mEdges[row - 1] = 1;
+                    mEdges[row] = 1;
+                    mEdges[row + 1] = 1;
+                }
+                int theta = mTheta[i] & 0xFF;
+                for (int d = -THETA_SPREAD; d <= THETA_SPREAD; d++) {
+                    int t = (theta + d + THETA_BINS) % THETA_BINS;
+                    int rho = Math.round((x * COS[t] + y * SIN[t]) / RHO_STEP) + rhoMax;
+                    acc[t * rhoBins + rho]++;
+                }
+            }
+        }
+    }
+
+    private void findLines(int minVotes) {
+        int rhoBins = rhoMax(mWidth, mHeight) * 2 + 1;
+        int[] acc = mAccumulator;
+        mHorizontalCount = 0;
+        mVerticalCount = 0;
+        for (int t = 0; t < THETA_BINS; t++) {
+            for (int r = 0; r < rhoBins; r++) {
+                int votes = acc[t * rhoBins + r];
+                if (votes < minVotes || !isPeak(t, r, rhoBins, votes)) {
+                    continue;
+                }
+                boolean horizontal = t >= 45 && t < 135;
+                insertLine(horizontal ? 0 : MAX_LINES, horizontal ? mHorizontalCount : mVerticalCount, t, r, votes);
+                if (horizontal) {
+                    mHorizontalCount = Math.min(mHorizontalCount + 1, MAX_LINES);
+                } else {
+                    mVerticalCount = Math.min(mVerticalCount + 1, MAX_LINES);
+                }
+            }
+        }
+    }
+
+    private boolean isPeak(int t, int r, int rhoBins, int votes) {
+        for (int dt = -PEAK_RADIUS; dt <= PEAK_RADIUS; dt++) {
+            int tt = t + dt;
+            if (tt < 0 || tt >= THETA_BINS) {
+                continue;
+            }
+            for (int dr = -PEAK_RADIUS; dr <= PEAK_RADIUS; dr++) {
+                int rr = r + dr;
+                if (rr < 0 || rr >= rhoBins || (dt == 0 && dr == 0)) {
+                    continue;
+                }
+                int other = mAccumulator[tt * rhoBins + rr];
+                // ties are broken towards the first cell so plateaus yield a single peak
+                if (other > votes || (other == votes && (dt < 0 || (dt == 0 && dr < 0)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // keeps the MAX_LINES strongest lines of one orientation, sorted by votes
+    private void insertLine(int base, int count, int theta, int rho, int votes) {
+        int pos = count;
+        while (pos > 0 && mLineVotes[base + pos - 1] < votes) {
+            pos--;
+        }
+        if (pos >= MAX_LINES) {
+            return;
+        }
+        int last = Math.min(count, MAX_LINES - 1);
+        for (int i = last; i > pos; i--) {
+            mLineTheta[base + i] = mLineTheta[base + i - 1];
+            mLineRho[base + i] = mLineRho[base + i - 1];
+            mLineVotes[base + i] = mLineVotes[base + i - 1];
+        }
+        mLineTheta[base + pos] = theta;
+        mLineRho[base + pos] = rho;
+        mLineVotes[base + pos] = votes;
+    }
+
+    private float[] findBestQuad() {
+        int w = mWidth, h = mHeight;
+        int rhoMax = rhoMax(w, h);
+        float[] best = null;
+        double bestScore = 0;
+        for (int a = 0; a < mHorizontalCount; a++) {
+            for (int b = a + 1; b < mHorizontalCount; b++) {
+                int top = a, bottom = b;
+                if (lineY(top, w / 2f, rhoMax) > lineY(bottom, w / 2f, rhoMax)) {
+                    top = b;
+                    bottom = a;
+                }
+                for (int c = 0; c < mVerticalCount; c++) {
+                    for (int d = c + 1; d < mVerticalCount; d++) {
+                        int left = MAX_LINES + c, right = MAX_LINES + d;
+                        if (lineX(left, h / 2f, rhoMax) > lineX(right, h / 2f, rhoMax)) {
+                            left = MAX_LINES + d;
+                            right = MAX_LINES + c;
+                        }
+                        double score = scoreQuad(top, right, bottom, left, rhoMax);
+                        if (score > bestScore) {
+                            bestScore = score;
+                            if (best == null) {
+                                best = new float[8];
+                            }
+                            System.arraycopy(mCandidate, 0, best, 0, 8);
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private float lineY(int line, float x, int rhoMax) {
+        int t = mLineTheta[line];
+        return ((mLineRho[line] - rhoMax) * RHO_STEP - x * COS[t]) / SIN[t];
+    }
+
+    private float lineX(int line, float y, int rhoMax) {
+        int t = mLineTheta[line];
+        return ((mLineRho[line] - rhoMax) * RHO_STEP - y * SIN[t]) / COS[t];
+    }
+
+    private double scoreQuad(int top, int right, int bottom, int left, int rhoMax) {
+        float[] q = mCandidate;
+        if (!intersect(top, left, rhoMax, q, 0) || !intersect(top, right, rhoMax, q, 2)
+                || !intersect(bottom, right, rhoMax, q, 4) || !intersect(bottom, left, rhoMax, q, 6)) {
+            return 0;
+        }
+        if (!CropGeometry.isConvexQuad(q)) {
+            return 0;
+        }
+        double area = 0;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            area += q[i * 2] * q[j * 2 + 1] - q[j * 2] * q[i * 2 + 1];
+        }
+        double areaRatio = Math.abs(area) / 2 / ((double) mWidth * mHeight);
+        if (areaRatio < MIN_AREA_RATIO) {
+            return 0;
+        }
+        double total = 0;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            double support = sideSupport(q[i * 2], q[i * 2 + 1], q[j * 2], q[j * 2 + 1]);
+            if (support < MIN_SIDE_SUPPORT) {
+                return 0;
+            }
+            total += support;
+        }
+        return total / 4 + 0.5 * areaRatio;
+    }
+
+    private boolean intersect(int l1, int l2, int rhoMax, float[] out, int offset) {
+        int t1 = mLineTheta[l1], t2 = mLineTheta[l2];
+        double det = COS[t1] * SIN[t2] - SIN[t1] * COS[t2];
+        if (Math.abs(det) < 1e-3) {
+            return false;
+        }
+        double r1 = (mLineRho[l1] - rhoMax) * RHO_STEP, r2 = (mLineRho[l2] - rhoMax) * RHO_STEP;
+        double x = (r1 * SIN[t2] - SIN[t1] * r2) / det;
+        double y = (COS[t1] * r2 - r1 * COS[t2]) / det;
+        double mx = mWidth * CORNER_MARGIN, my = mHeight * CORNER_MARGIN;
+        if (x < -mx || x > mWidth + mx || y < -my || y > mHeight + my) {
+            return false;
+        }
+        out[offset] = (float) Math.min(Math.max(x, 0), mWidth);
+        out[offset + 1] = (float) Math.min(Math.max(y, 0), mHeight);
+        return true;
+    }
+
+    private double sideSupport(float x1, float y1, float x2, float y2) {
+        double dx = x2 - x1, dy = y2 - y1;
+        int steps = (int) Math.max(Math.abs(dx), Math.abs(dy));
+        if (steps < 2) {
+            return 0;
+        }
+        int hits = 0;
+        for (int s = 0; s <= steps; s++) {
+            int x = (int) (x1 + dx * s / steps);
+            int y = (int) (y1 + dy * s / steps);
+            x = Math.min(Math.max(x, 0), mWidth - 1);
+            y = Math.min(Math.max(y, 0), mHeight - 1);
+            if (mEdges[y * mWidth + x] != 0) {
+                hits++;
+            }
+        }
+        return (double) hits / (steps + 1);
+    }
+}
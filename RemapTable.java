@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Precomputed {@link PerspectiveWarp} of one quad from a source of fixed size, for rigs that
+ * crop the same quad over and over. Every output pixel keeps the index of its top-left source
+ * sample and its two 8-bit bilinear weights, 6 bytes in all, so a crop is a plain gather with
+ * the same result as a warp over the whole source. Strip crops warp through source windows
+ * instead and can differ from it where a sample lands right on a rounding boundary: by one
+ * weight step, at most 1 per channel, or by a neighbouring source pixel at nearest quality.
+ * Tables can be saved and later loaded or memory-mapped.
+ * <p>
+ * The gather reads one pixel past the clamped edges with a zero weight, so source arrays need
+ * {@link #getSourceLength()} ints rather than width * height.
+ */
+public final class RemapTable {
+
+    private static final int MAGIC = 0x524D4150; // "RMAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64; // bytes, keeps the tables aligned
+
+    private final float[] mQuad;
+    private final int mSrcWidth, mSrcHeight;
+    private final int mWidth, mHeight;
+    private final int mQuality;
+    private final IntBuffer mIndex;
+    private final ShortBuffer mWeights; // wx | wy << 8
+
+    private RemapTable(float[] quad, int srcWidth, int srcHeight, int width, int height, int quality,
+                       IntBuffer index, ShortBuffer weights) {
+        mQuad = quad;
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mWidth = width;
+        mHeight = height;
+        mQuality = quality;
+        mIndex = index;
+        mWeights = weights;
+    }
+
+    /**
+     * Computes the table for {@code quad} on a {@code srcWidth} x {@code srcHeight} source, at
+     * the output size the warp would pick.
+     */
+    public static RemapTable create(float[] quad, final int srcWidth, final int srcHeight, final int quality,
+                                    int parallelism) {
+        final int width = PerspectiveWarp.getOutputWidth(quad);
+        int height = PerspectiveWarp.getOutputHeight(quad);
+        final double[] m = PerspectiveWarp.computeTransform(quad, width, height);
+        final int[] index = new int[width * height];
+        final short[] weights = new short[width * height];
+        ParallelBands.run(height, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                fill(m, srcWidth, srcHeight, width, rowStart, rowEnd, quality, index, weights);
+            }
+        });
+        return new RemapTable(quad.clone(), srcWidth, srcHeight, width, height, quality,
+                IntBuffer.wrap(index), ShortBuffer.wrap(weights));
+    }
+
+    // same sampling positions as PerspectiveWarp.warp and warpNearest
+    private static void fill(double[] m, int srcWidth, int srcHeight, int width, int rowStart, int rowEnd,
+                             int quality, int[] index, short[] weights) {
+        final int maxX = srcWidth - 1;
+        final int maxY = srcHeight - 1;
+        final double m0 = m[0], m3 = m[3], m6 = m[6];
+        int out = rowStart * width;
+        for (int y = rowStart; y < rowEnd; y++) {
+            double sx = m[1] * y + m[2];
+            double sy = m[4] * y + m[5];
+            double sw = m[7] * y + m[8];
+            for (int x = 0; x < width; x++, sx += m0, sy += m3, sw += m6, out++) {
+                double iw = 1.0 / sw;
+                double fx = sx * iw;
+                double fy = sy * iw;
+                if (quality == PerspectiveWarp.QUALITY_NEAREST) {
+                    int ix = Math.min(Math.max((int) (fx + 0.5), 0), maxX);
+                    int iy = Math.min(Math.max((int) (fy + 0.5), 0), maxY);
+                    index[out] = iy * srcWidth + ix;
+                    continue;
+                }
+                int ix0, wx;
+                if (fx <= 0) {
+                    ix0 = 0;
+                    wx = 0;
+                } else if (fx >= maxX) {
+                    ix0 = maxX;
+                    wx = 0;
+                } else {
+                    ix0 = (int) fx;
+                    wx = (int) ((fx - ix0) * 256);
+                }
+                int iy0, wy;
+                if (fy <= 0) {
+                    iy0 = 0;
+                    wy = 0;
+                } else if (fy >= maxY) {
+                    iy0 = maxY;
+                    wy = 0;
+                } else {
+                    iy0 = (int) fy;
+                    wy = (int) ((fy - iy0) * 256);
+                }
+                index[out] = iy0 * srcWidth + ix0;
+                weights[out] = (short) (wx | wy << 8);
+            }
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSourceWidth() {
+        return mSrcWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSrcHeight;
+    }
+
+    /**
+     * Ints the source array must hold: the image plus one row and one pixel of padding.
+     */
+    public int getSourceLength() {
+        return mSrcWidth * (mSrcHeight + 1) + 1;
+    }
+
+    /**
+     * Whether the table crops exactly {@code quad} from a source of this size at {@code quality}.
+     */
+    public boolean matches(float[] quad, int srcWidth, int srcHeight, int quality) {
+        return srcWidth == mSrcWidth && srcHeight == mSrcHeight && quality == mQuality && Arrays.equals(quad, mQuad);
+    }
+
+    /**
+     * Gathers output rows [rowStart, rowEnd) from {@code src} into {@code dst}, row
+     * {@code rowStart} at {@code dst[dstOffset]}.
+     */
+    public void remap(int[] src, int[] dst, int dstOffset, int rowStart, int rowEnd) {
+        if (src.length < getSourceLength()) {
+            throw new IllegalArgumentException("source needs " + getSourceLength() + " ints");
+        }
+        int width = mWidth;
+        int stride = mSrcWidth;
+        IntBuffer index = mIndex;
+        ShortBuffer weights = mWeights;
+        int out = dstOffset;
+        int end = rowEnd * width;
+        if (mQuality == PerspectiveWarp.QUALITY_NEAREST) {
+            for (int i = rowStart * width; i < end; i++) {
+                dst[out++] = src[index.get(i)];
+            }
+            return;
+        }
+        for (int i = rowStart * width; i < end; i++) {
+            int p = index.get(i);
+            int w = weights.get(i);
+            int wx = w & 0xFF;
+            int wy = (w >> 8) & 0xFF;
+            int top = PerspectiveWarp.lerp(src[p], src[p + 1], wx);
+            int bottom = PerspectiveWarp.lerp(src[p + stride], src[p + stride + 1], wx);
+            dst[out++] = PerspectiveWarp.lerp(top, bottom, wy);
+        }
+    }
+
+    public void save(File file) throws IOException {
+        int pixels = mWidth * mHeight;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            ByteOrder order = ByteOrder.nativeOrder();
+            header.putInt(MAGIC).putInt(VERSION).putInt(order == ByteOrder.BIG_ENDIAN ? 0 : 1)
+                    .putInt(mSrcWidth).putInt(mSrcHeight).putInt(mWidth).putInt(mHeight).putInt(mQuality);
+            for (float v : mQuad) {
+                header.putFloat(v);
+            }
+            header.rewind();
+            writeFully(channel, header);
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024).order(order);
+            for (int i = 0; i < pixels; ) {
+                chunk.clear();
+                for (; i < pixels && chunk.remaining() >= 4; i++) {
+                    chunk.putInt(mIndex.get(i));
+                }
+                chunk.flip();
+                writeFully(channel, chunk);
+            }
+            for (int i = 0; i < pixels; ) {
+                chunk.clear();
+                for (; i < pixels && chunk.remaining() >= 2; i++) {
+                    chunk.putShort(mWeights.get(i));
+                }
+                chunk.flip();
+                writeFully(channel, chunk);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #save(File)} onto the heap.
+     */
+    public static RemapTable load(File file) throws IOException {
+        return read(file, false);
+    }
+
+    /**
+     * Maps a table written by {@link #save(File)} read-only, without copying it onto the heap.
+     */
+    public static RemapTable map(File file) throws IOException {
+        return read(file, true);
+    }
+
+    private static RemapTable read(File file, boolean mapped) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("not a remap table: " + file);
+            }
+            ByteOrder order = header.getInt() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            int srcWidth = header.getInt();
+            int srcHeight = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+            int quality = header.getInt();
+            float[] quad = new float[8];
+            for (int i = 0; i < 8; i++) {
+                quad[i] = header.getFloat();
+            }
+            long pixels = (long) width * height;
+            if (channel.size() != HEADER_SIZE + pixels * 6) {
+                throw new IOException("truncated remap table: " + file);
+            }
+            ByteBuffer data;
+            if (mapped) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, pixels * 6);
+            } else {
+                data = ByteBuffer.allocate((int) (pixels * 6));
+                readFully(channel, data, HEADER_SIZE);
+                data.flip();
+            }
+            data.order(order);
+            data.limit((int) (pixels * 4));
+            IntBuffer index = data.slice().order(order).asIntBuffer();
+            data.limit((int) (pixels * 6)).position((int) (pixels * 4));
+            ShortBuffer weights = data.slice().order(order).asShortBuffer();
+            if (!mapped) {
+                // plain arrays gather faster than views over a heap buffer
+                int[] indexArray = new int[(int) pixels];
+                short[] weightArray = new short[(int) pixels];
+                index.get(indexArray);
+                weights.get(weightArray);
+                index = IntBuffer.wrap(indexArray);
+                weights = ShortBuffer.wrap(weightArray);
+            }
+            return new RemapTable(quad, srcWidth, srcHeight, width, height, quality, index, weights);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of remap table");
+            }
+            position += read;
+        }
+    }
+}
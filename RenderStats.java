@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size timing histograms for the overlay draw stages and touch dispatch. Buckets are
+ * log-linear, four per power of two, so percentiles are accurate to within about 19% from
+ * nanoseconds up to seconds. Only the UI thread records; not thread-safe.
+ */
+public final class RenderStats {
+
+    public static final int STAGE_MASK = 0;
+    public static final int STAGE_GUIDE_LINE = 1;
+    public static final int STAGE_LINES = 2;
+    public static final int STAGE_POINTS = 3;
+    public static final int STAGE_MAGNIFIER = 4;
+    public static final int STAGE_CUS_MAGNIFIER = 5;
+    public static final int STAGE_TOUCH = 6;
+    public static final int STAGE_OVERLAY = 7; // replaying the static overlay during a drag
+    public static final int STAGE_COUNT = 8;
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[STAGE_COUNT * BUCKETS];
+    private final long[] mTotals = new long[STAGE_COUNT];
+    private final long[] mSums = new long[STAGE_COUNT];
+    private final long[] mMax = new long[STAGE_COUNT];
+
+    /**
+     * Records the time since {@code start} for {@code stage} and returns now, so consecutive
+     * stages can chain their start times.
+     */
+    public long record(int stage, long start) {
+        long now = System.nanoTime();
+        add(stage, now - start);
+        return now;
+    }
+
+    /**
+     * Records one sample of {@code nanos} for {@code stage}, for a stage timed in pieces.
+     */
+    public void add(int stage, long nanos) {
+        mCounts[stage * BUCKETS + getBucket(nanos)]++;
+        mTotals[stage]++;
+        mSums[stage] += nanos;
+        mMax[stage] = Math.max(mMax[stage], nanos);
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mTotals, 0);
+        Arrays.fill(mSums, 0);
+        Arrays.fill(mMax, 0);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(mCounts.clone(), mTotals.clone(), mSums.clone(), mMax.clone());
+    }
+
+    static int getBucket(long nanos) {
+        if (nanos < (1 << SUB_BUCKET_BITS)) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+    }
+
+    // largest value that falls into bucket
+    static long getBucketLimit(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS)) {
+            return bucket;
+        }
+        int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        long base = (sub + (1 << SUB_BUCKET_BITS)) << (exponent - SUB_BUCKET_BITS);
+        return base + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Immutable copy of the histograms.
+     */
+    public static final class Snapshot {
+
+        private final long[] mCounts;
+        private final long[] mTotals;
+        private final long[] mSums;
+        private final long[] mMax;
+
+        Snapshot(long[] counts, long[] totals, long[] sums, long[] max) {
+            mCounts = counts;
+            mTotals = totals;
+            mSums = sums;
+            mMax = max;
+        }
+
+        public long getCount(int stage) {
+            return mTotals[stage];
+        }
+
+        public long getAverageNanos(int stage) {
+            return mTotals[stage] == 0 ? 0 : mSums[stage] / mTotals[stage];
+        }
+
+        public long getMaxNanos(int stage) {
+            return mMax[stage];
+        }
+
+        /**
+         * Upper bound of the bucket holding the {@code percentile} (0 - 100) sample of
+         * {@code stage}, in nanoseconds, or 0 without samples.
+         */
+        public long getPercentileNanos(int stage, float percentile) {
+            long total = mTotals[stage];
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[stage * BUCKETS + i];
+                if (seen >= rank) {
+                    return Math.min(getBucketLimit(i), mMax[stage]);
+                }
+            }
+            return mMax[stage];
+        }
+    }
+}
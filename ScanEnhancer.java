@@ -0,0 +1,174 @@
+/**
+ * Document enhancement for cropped scans: grayscale, shadow removal and adaptive black and
+ * white. Local means come from an integral image, so the cost per pixel does not depend on the
+ * window size, and every pass runs in {@link ParallelBands}.
+ * <p>
+ * Shadow removal divides each pixel by the mean of a large surrounding window, which flattens
+ * uneven lighting and pushes paper to white. Black and white compares each pixel with the mean
+ * of a smaller window (Bradley); being a ratio test it is already insensitive to the lighting,
+ * so it runs on the gray values directly and needs no second integral image.
+ * <p>
+ * Transparent pixels, the surroundings of a polygon crop, are left out of the local means; a
+ * second integral image counts the opaque pixels of each window. Averaged in as black they
+ * would leave a dark fringe in black and white and over-brighten along the cut in shadow
+ * removal.
+ */
+public final class ScanEnhancer {
+
+    public static final int MODE_NONE = 0;
+    public static final int MODE_GRAY = 1;
+    public static final int MODE_SHADOW_REMOVAL = 2; // gray, then shadow removal
+    public static final int MODE_BLACK_WHITE = 3; // gray, then adaptive threshold
+
+    private static final int BACKGROUND_WINDOW_DIVISOR = 8; // of the shorter side
+    private static final int THRESHOLD_WINDOW_DIVISOR = 24; // of the shorter side
+    private static final int THRESHOLD_PERCENT = 15; // darker than the local mean by this is ink
+    private static final int WHITE_POINT = 245; // what the local background maps to
+
+    private ScanEnhancer() {
+    }
+
+    /**
+     * Enhances {@code argb} in place. Alpha is kept, so transparent polygon surroundings stay
+     * transparent.
+     */
+    public static void enhance(final int[] argb, final int width, int height, int mode, int parallelism) {
+        if (mode == MODE_NONE) {
+            return;
+        }
+        final byte[] gray = new byte[width * height];
+        ParallelBands.run(height, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                toGray(argb, gray, rowStart * width, rowEnd * width);
+            }
+        });
+        enhance(gray, width, height, mode, parallelism, argb, true);
+    }
+
+    /**
+     * Writes the enhanced {@code gray} image to {@code out}, or a new array if it is null, as
+     * opaque ARGB or keeping the alpha already in {@code out}. With the alpha kept, pixels that
+     * are transparent in {@code out} are left out of the local means.
+     */
+    public static int[] enhance(final byte[] gray, final int width, final int height, final int mode, int parallelism,
+                                int[] out, final boolean keepAlpha) {
+        final int[] dst = out != null ? out : new int[width * height];
+        byte[] opaque = keepAlpha && mode != MODE_GRAY ? getOpaqueMask(dst, width, height, parallelism) : null;
+        final int[] integral = mode == MODE_GRAY ? null : integral(gray, opaque, width, height, parallelism);
+        final int[] counts = opaque != null ? integral(opaque, null, width, height, parallelism) : null;
+        int shorter = Math.min(width, height);
+        final int radius = mode == MODE_BLACK_WHITE
+                ? Math.max(1, shorter / THRESHOLD_WINDOW_DIVISOR / 2)
+                : Math.max(1, shorter / BACKGROUND_WINDOW_DIVISOR / 2);
+        ParallelBands.run(height, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                int stride = width + 1;
+                for (int y = rowStart; y < rowEnd; y++) {
+                    int top = Math.max(0, y - radius) * stride;
+                    int bottom = Math.min(height, y + radius + 1) * stride;
+                    int rows = Math.min(height, y + radius + 1) - Math.max(0, y - radius);
+                    int i = y * width;
+                    for (int x = 0; x < width; x++, i++) {
+                        int g = gray[i] & 0xFF;
+                        int v;
+                        if (mode == MODE_GRAY) {
+                            v = g;
+                        } else if (counts != null && (dst[i] & 0xFF000000) == 0) {
+                            v = 0;
+                        } else {
+                            int left = Math.max(0, x - radius);
+                            int right = Math.min(width, x + radius + 1);
+                            // int wraparound cancels out as long as one window's sum fits in 32 bits
+                            int sum = integral[bottom + right] - integral[bottom + left]
+                                    - integral[top + right] + integral[top + left];
+                            int area = counts == null ? rows * (right - left)
+                                    : counts[bottom + right] - counts[bottom + left]
+                                    - counts[top + right] + counts[top + left];
+                            if (mode == MODE_BLACK_WHITE) {
+                                v = (long) g * area * 100 < (long) sum * (100 - THRESHOLD_PERCENT) ? 0 : 255;
+                            } else {
+                                v = sum == 0 ? 0 : (int) Math.min(255, (long) g * area * WHITE_POINT / sum);
+                            }
+                        }
+                        int alpha = keepAlpha ? dst[i] & 0xFF000000 : 0xFF000000;
+                        dst[i] = alpha | v << 16 | v << 8 | v;
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    public static void toGray(int[] argb, byte[] gray, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int c = argb[i];
+            gray[i] = (byte) ((((c >> 16) & 0xFF) * 77 + ((c >> 8) & 0xFF) * 150 + (c & 0xFF) * 29) >> 8);
+        }
+    }
+
+    /**
+     * Returns the (width + 1) x (height + 1) integral image of {@code gray}; entry (x, y) is the
+     * sum of all pixels above and left of it, modulo 2^32. Rows are summed in parallel, then
+     * columns.
+     */
+    public static int[] integral(byte[] gray, int width, int height, int parallelism) {
+        return integral(gray, null, width, height, parallelism);
+    }
+
+    // 1 where argb is opaque, 0 where transparent, or null if nothing is transparent
+    private static byte[] getOpaqueMask(final int[] argb, final int width, int height, int parallelism) {
+        final byte[] mask = new byte[width * height];
+        final boolean[] transparent = new boolean[1];
+        ParallelBands.run(height, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                boolean found = false;
+                for (int i = rowStart * width, end = rowEnd * width; i < end; i++) {
+                    boolean opaque = (argb[i] & 0xFF000000) != 0;
+                    mask[i] = (byte) (opaque ? 1 : 0);
+                    found |= !opaque;
+                }
+                if (found) {
+                    transparent[0] = true;
+                }
+            }
+        });
+        return transparent[0] ? mask : null;
+    }
+
+    // integral image of gray, counting only the pixels where mask is set if there is one
+    private static int[] integral(final byte[] gray, final byte[] mask, final int width, final int height,
+                                  int parallelism) {
+        final int stride = width + 1;
+        final int[] sums = new int[stride * (height + 1)];
+        ParallelBands.run(height, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                for (int y = rowStart; y < rowEnd; y++) {
+                    int sum = 0;
+                    int in = y * width;
+                    int out = (y + 1) * stride + 1;
+                    for (int x = 0; x < width; x++) {
+                        sum += mask == null || mask[in + x] != 0 ? gray[in + x] & 0xFF : 0;
+                        sums[out + x] = sum;
+                    }
+                }
+            }
+        });
+        // bands of columns this time
+        ParallelBands.run(stride, parallelism, new ParallelBands.Band() {
+            @Override
+            public void run(int columnStart, int columnEnd) {
+                for (int y = 2; y <= height; y++) {
+                    int row = y * stride;
+                    for (int x = columnStart; x < columnEnd; x++) {
+                        sums[row + x] += sums[row - stride + x];
+                    }
+                }
+            }
+        });
+        return sums;
+    }
+}
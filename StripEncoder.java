@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * Row-oriented image encoder fed in horizontal strips from top to bottom, so an image can be
+ * written without ever holding all of its pixels.
+ */
+public interface StripEncoder {
+
+    /**
+     * Encodes the next {@code rows} rows of ARGB pixels, row r starting at
+     * {@code pixels[offset + r * stride]}.
+     */
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException;
+
+    /**
+     * Writes the trailer once every row has been written. The stream is not closed.
+     */
+    void finish() throws IOException;
+}
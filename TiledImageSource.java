@@ -0,0 +1,115 @@
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Full-resolution image behind a {@link BitmapRegionDecoder}, for scans too large to hold in
+ * memory. Coordinates are in full-resolution pixels. Decoding is serialized, so one source can
+ * be shared by the UI thread and crop workers.
+ */
+public class TiledImageSource {
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth, mHeight;
+    private final Rect mRect = new Rect();
+
+    public TiledImageSource(BitmapRegionDecoder decoder) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+    }
+
+    public static TiledImageSource open(String path) throws IOException {
+        return new TiledImageSource(BitmapRegionDecoder.newInstance(path, false));
+    }
+
+    /**
+     * Reads the whole stream; it can be closed once this returns.
+     */
+    public static TiledImageSource open(InputStream stream) throws IOException {
+        return new TiledImageSource(BitmapRegionDecoder.newInstance(stream, false));
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Smallest power of two subsampling that brings the longest side down to {@code maxSize}.
+     */
+    public int getSampleSize(int maxSize) {
+        int sampleSize = 1;
+        while (Math.max(mWidth, mHeight) / sampleSize > maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the whole image with every {@code sampleSize}th pixel, as the display base level.
+     */
+    public Bitmap decodeBase(int sampleSize) {
+        return decodeRegion(0, 0, mWidth, mHeight, sampleSize);
+    }
+
+    public Bitmap decodeRegion(int left, int top, int right, int bottom, int sampleSize) {
+        return decodeRegion(left, top, right, bottom, sampleSize, null);
+    }
+
+    /**
+     * Decodes into the top left corner of {@code reuse} unless it is null. It must be a mutable
+     * ARGB_8888 bitmap at least as large as the decoded region.
+     */
+    public synchronized Bitmap decodeRegion(int left, int top, int right, int bottom, int sampleSize, Bitmap reuse) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = reuse;
+        mRect.set(left, top, right, bottom);
+        return mDecoder.decodeRegion(mRect, options);
+    }
+
+    /**
+     * Copies the full-resolution pixels of the given window, clipped to the image, into
+     * {@code pixels} with the given row stride. The window's first pixel lands at
+     * {@code pixels[offset]}; parts outside the image are left untouched.
+     */
+    public void readPixels(int left, int top, int width, int height, int[] pixels, int offset, int stride) {
+        Bitmap region = readPixels(left, top, width, height, pixels, offset, stride, null);
+        if (region != null) {
+            region.recycle();
+        }
+    }
+
+    /**
+     * Like {@link #readPixels(int, int, int, int, int[], int, int)}, but decodes through
+     * {@code reuse} as in {@link #decodeRegion(int, int, int, int, int, Bitmap)}. Returns the
+     * bitmap to pass as {@code reuse} next time.
+     */
+    public Bitmap readPixels(int left, int top, int width, int height, int[] pixels, int offset, int stride,
+                             Bitmap reuse) {
+        int x0 = Math.max(left, 0), y0 = Math.max(top, 0);
+        int x1 = Math.min(left + width, mWidth), y1 = Math.min(top + height, mHeight);
+        if (x1 <= x0 || y1 <= y0) {
+            return reuse;
+        }
+        Bitmap region = decodeRegion(x0, y0, x1, y1, 1, reuse);
+        if (region == null) {
+            return reuse;
+        }
+        region.getPixels(pixels, offset + (y0 - top) * stride + (x0 - left), stride, 0, 0, x1 - x0, y1 - y0);
+        return region;
+    }
+
+    public void recycle() {
+        mDecoder.recycle();
+    }
+}
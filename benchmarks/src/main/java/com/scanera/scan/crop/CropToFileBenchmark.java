@@ -0,0 +1,121 @@
+package com.scanera.scan.crop;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A page cropped and encoded to a discarding stream, the way the batch cropper writes a file.
+ * {@code strips} warps a strip at a time through source windows of at most
+ * CropStrips.WINDOW_PIXELS and encodes each strip as it is done; {@code full} warps the whole
+ * page into one buffer first and then encodes it, as cropping to a bitmap and compressing that
+ * does. Run with {@code -prof com.scanera.scan.crop.PeakHeapProfiler} for the heap a crop
+ * needs on top of the source image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-XX:+UseSerialGC", "-Xmn16m"})
+public class CropToFileBenchmark {
+
+    private static final int STRIP_ROWS = 256;
+    private static final int WINDOW_PIXELS = 1 << 22;
+
+    @Param({"12", "50"})
+    public int megapixels;
+
+    @Param({"jpeg", "png"})
+    public String format;
+
+    @Param({"strips", "full"})
+    public String path;
+
+    private int[] mSrc;
+    private int mSrcWidth, mSrcHeight;
+    private double[] mTransform;
+    private int mWidth, mHeight;
+
+    @Setup
+    public void setUp() {
+        mSrcWidth = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        mSrcHeight = mSrcWidth * 3 / 4;
+        mSrc = Images.page(mSrcWidth, mSrcHeight);
+        float[] quad = Images.quad(mSrcWidth, mSrcHeight);
+        mWidth = PerspectiveWarp.getOutputWidth(quad);
+        mHeight = PerspectiveWarp.getOutputHeight(quad);
+        mTransform = PerspectiveWarp.computeTransform(quad, mWidth, mHeight);
+    }
+
+    @Setup(Level.Invocation)
+    public void startInvocation() {
+        PeakHeapProfiler.start();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopInvocation() {
+        PeakHeapProfiler.stop();
+    }
+
+    @Benchmark
+    public void crop() throws IOException {
+        try (OutputStream out = new BufferedOutputStream(OutputStream.nullOutputStream())) {
+            StripEncoder encoder = "png".equals(format)
+                    ? new PngStripEncoder(out, mWidth, mHeight, false)
+                    : new JpegStripEncoder(out, mWidth, mHeight, 90);
+            if ("full".equals(path)) {
+                cropFull(encoder);
+            } else {
+                cropStrips(encoder);
+            }
+            encoder.finish();
+        }
+    }
+
+    private void cropFull(StripEncoder encoder) throws IOException {
+        int[] dst = new int[mWidth * mHeight];
+        PerspectiveWarp.warp(mSrc, mSrcWidth, mSrcHeight, mTransform, dst, 0, mWidth, 0, mHeight);
+        for (int y = 0; y < mHeight; y += STRIP_ROWS) {
+            encoder.writeRows(dst, y * mWidth, mWidth, Math.min(STRIP_ROWS, mHeight - y));
+        }
+    }
+
+    // CropStrips.warp, with the windows copied out of the source as a region decode would
+    private void cropStrips(StripEncoder encoder) throws IOException {
+        int[] dst = new int[mWidth * Math.min(mHeight, STRIP_ROWS)];
+        int[] window = null;
+        for (int y = 0; y < mHeight; y += STRIP_ROWS) {
+            int rows = Math.min(STRIP_ROWS, mHeight - y);
+            for (int[] block : PerspectiveWarp.splitWindows(mTransform, mSrcWidth, mSrcHeight, 0, mWidth, y, y + rows,
+                    WINDOW_PIXELS)) {
+                int width = block[2], height = block[3];
+                if (window == null || window.length < width * height) {
+                    window = new int[width * height];
+                }
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(mSrc, (block[1] + row) * mSrcWidth + block[0], window, row * width, width);
+                }
+                double[] m = PerspectiveWarp.offsetSource(mTransform.clone(), block[0], block[1]);
+                PerspectiveWarp.warp(window, width, height, m, dst, (block[6] - y) * mWidth + block[4], mWidth,
+                        block[4], block[5], block[6], block[7]);
+            }
+            encoder.writeRows(dst, 0, mWidth, rows);
+        }
+    }
+}
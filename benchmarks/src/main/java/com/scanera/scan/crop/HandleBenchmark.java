@@ -0,0 +1,84 @@
+package com.scanera.scan.crop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a touch event costs: hit-testing the handles, linearly and through the grid, and
+ * validating a drag of a quad corner or a polygon vertex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleBenchmark {
+
+    private static final float CATCH_DISTANCE = 40;
+
+    @Param({"4", "64", "512"})
+    public int vertices;
+
+    private float[] mPoints;
+    private float[] mHandles;
+    private final HandleGrid mGrid = new HandleGrid();
+    private float[] mQuad;
+    private float mMissX, mMissY;
+
+    @Setup
+    public void setUp() {
+        mPoints = Images.polygon(vertices, 2000, 1500, 1400);
+        mHandles = new float[vertices * 4];
+        float[] midPoints = new float[vertices * 2];
+        CropGeometry.getEdgeMidPoints(mPoints, vertices, midPoints);
+        System.arraycopy(mPoints, 0, mHandles, 0, vertices * 2);
+        System.arraycopy(midPoints, 0, mHandles, vertices * 2, vertices * 2);
+        mGrid.build(mHandles, vertices * 2, CATCH_DISTANCE);
+        mQuad = Images.quad(4000, 3000);
+        // the common case: a touch that misses every handle
+        mMissX = 2000;
+        mMissY = 1500;
+    }
+
+    @Benchmark
+    public int hitTestLinear() {
+        return CropGeometry.findHandle(mHandles, 0, vertices * 2, mMissX, mMissY, CATCH_DISTANCE);
+    }
+
+    @Benchmark
+    public int hitTestGrid() {
+        return mGrid.find(mHandles, mMissX, mMissY, CATCH_DISTANCE);
+    }
+
+    @Benchmark
+    public void gridRebuild() {
+        mGrid.build(mHandles, vertices * 2, CATCH_DISTANCE);
+    }
+
+    @Benchmark
+    public boolean canMoveQuadCorner() {
+        return CropGeometry.canMoveCorner(mQuad, 0, mQuad[0] + 12, mQuad[1] + 7);
+    }
+
+    @Benchmark
+    public boolean canMovePolygonVertex() {
+        return CropGeometry.canMoveVertices(mPoints, vertices, 0, 1, -12, 7);
+    }
+
+    @Benchmark
+    public boolean isSimplePolygon() {
+        return CropGeometry.isSimplePolygon(mPoints, vertices);
+    }
+}
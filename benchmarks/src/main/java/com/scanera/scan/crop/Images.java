@@ -0,0 +1,56 @@
+package com.scanera.scan.crop;
+
+/**
+ * Synthetic test images: a light page with some text-like noise on a dark table.
+ */
+final class Images {
+
+    private Images() {
+    }
+
+    static int[] page(int width, int height) {
+        int[] pixels = new int[width * height];
+        int seed = 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                seed = seed * 1103515245 + 12345;
+                boolean page = x > width / 10 && x < width * 9 / 10 && y > height / 12 && y < height * 11 / 12;
+                int v = page ? 200 + ((seed >>> 16) & 31) : 40 + ((seed >>> 16) & 15);
+                pixels[y * width + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+        return pixels;
+    }
+
+    // slightly skewed quad around the page, as a detector would report it
+    static float[] quad(int width, int height) {
+        return new float[]{
+                width * 0.11f, height * 0.09f,
+                width * 0.89f, height * 0.08f,
+                width * 0.91f, height * 0.92f,
+                width * 0.09f, height * 0.91f};
+    }
+
+    // the page quad shrunk to stay inside the image at any angle, turned by degrees about the centre
+    static float[] rotatedQuad(int width, int height, double degrees) {
+        float[] quad = quad(width, height);
+        double cos = Math.cos(Math.toRadians(degrees)), sin = Math.sin(Math.toRadians(degrees));
+        double scale = Math.min(1, Math.min(width, height) / Math.hypot(width * 0.8, height * 0.83));
+        for (int i = 0; i < quad.length; i += 2) {
+            double x = (quad[i] - width / 2.0) * scale, y = (quad[i + 1] - height / 2.0) * scale;
+            quad[i] = (float) (width / 2.0 + x * cos - y * sin);
+            quad[i + 1] = (float) (height / 2.0 + x * sin + y * cos);
+        }
+        return quad;
+    }
+
+    static float[] polygon(int count, float cx, float cy, float radius) {
+        float[] points = new float[count * 2];
+        for (int i = 0; i < count; i++) {
+            double angle = Math.PI * 2 * i / count;
+            points[i * 2] = (float) (cx + Math.cos(angle) * radius);
+            points[i * 2 + 1] = (float) (cy + Math.sin(angle) * radius);
+        }
+        return points;
+    }
+}
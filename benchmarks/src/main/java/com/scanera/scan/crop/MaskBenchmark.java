@@ -0,0 +1,63 @@
+package com.scanera.scan.crop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Masking a polygon crop out of its bounding box. Clearing is idempotent, so every invocation
+ * does the same work on the same buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class MaskBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"6", "64"})
+    public int vertices;
+
+    private int[] mPixels;
+    private int mWidth, mHeight;
+    private float[] mPoints;
+
+    @Setup
+    public void setUp() {
+        mWidth = (int) Math.round(Math.sqrt(megapixels * 1e6));
+        mHeight = mWidth;
+        mPixels = Images.page(mWidth, mHeight);
+        mPoints = Images.polygon(vertices, mWidth / 2f, mHeight / 2f, mWidth / 2f);
+    }
+
+    @Benchmark
+    public int[] mask() {
+        PolygonMask.mask(mPixels, mWidth, 0, 0, mPoints, vertices, 0, mHeight);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] maskParallel() {
+        ParallelBands.run(mHeight, ParallelBands.getMaxParallelism(), new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                PolygonMask.mask(mPixels, mWidth, 0, 0, mPoints, vertices, rowStart, rowEnd);
+            }
+        });
+        return mPixels;
+    }
+}
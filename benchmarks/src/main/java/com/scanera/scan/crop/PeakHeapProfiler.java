@@ -0,0 +1,77 @@
+package com.scanera.scan.crop;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports peak.heap, the most heap any invocation used above what was live when it started.
+ * Benchmarks bracket each invocation with {@link #start()} and {@link #stop()}; run them with
+ * {@code -prof com.scanera.scan.crop.PeakHeapProfiler}. The peak is the sum of the heap pools'
+ * peaks, so it is only tight with a young generation small enough not to hide the arrays an
+ * invocation keeps, such as {@code -XX:+UseSerialGC -Xmn16m}.
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+
+    private static final List<MemoryPoolMXBean> HEAP = new ArrayList<>();
+    private static long sBaseline;
+    private static volatile long sPeak;
+
+    static {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                HEAP.add(pool);
+            }
+        }
+    }
+
+    /**
+     * Collects the garbage and starts measuring from what is left.
+     */
+    static void start() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : HEAP) {
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+        sBaseline = used;
+    }
+
+    static void stop() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : HEAP) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        sPeak = Math.max(sPeak, peak - sBaseline);
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        sPeak = 0;
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams, IterationResult result) {
+        return Collections.singletonList(new ScalarResult("peak.heap", sPeak / (1024.0 * 1024.0), "MB",
+                AggregationPolicy.MAX));
+    }
+
+    @Override
+    public String getDescription() {
+        return "Peak heap above the live set of each invocation";
+    }
+}
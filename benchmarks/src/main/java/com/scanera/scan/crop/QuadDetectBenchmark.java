@@ -0,0 +1,42 @@
+package com.scanera.scan.crop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quad detection on the downscaled gray image the view hands the detector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadDetectBenchmark {
+
+    private final QuadDetector mDetector = new QuadDetector();
+    private byte[] mGray;
+    private int mWidth, mHeight;
+
+    @Setup
+    public void setUp() {
+        mWidth = QuadDetector.DEFAULT_DETECT_SIZE;
+        mHeight = mWidth * 3 / 4;
+        mGray = QuadDetector.toGray(Images.page(mWidth, mHeight), new byte[mWidth * mHeight]);
+    }
+
+    @Benchmark
+    public float[] detect() {
+        return mDetector.detect(mGray, mWidth, mHeight);
+    }
+}
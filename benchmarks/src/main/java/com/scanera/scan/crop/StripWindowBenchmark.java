@@ -0,0 +1,86 @@
+package com.scanera.scan.crop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Strip crops the way CropStrips runs them, with the source window of every strip copied out
+ * of the image as a region decode would. A budget of 0 reads whole-strip windows, as before
+ * strips were split into column blocks; the other is CropStrips.WINDOW_PIXELS. Each crop
+ * allocates one window buffer for its largest block, so with {@code -prof gc} the
+ * gc.alloc.rate.norm of a crop is the window memory it needs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StripWindowBenchmark {
+
+    private static final int STRIP_ROWS = 256;
+
+    @Param({"12", "50"})
+    public int megapixels;
+
+    @Param({"0", "30"})
+    public int degrees;
+
+    @Param({"0", "4194304"})
+    public long budget;
+
+    private int[] mSrc;
+    private int mSrcWidth, mSrcHeight;
+    private double[] mTransform;
+    private int[] mDst;
+    private int mWidth, mHeight;
+
+    @Setup
+    public void setUp() {
+        mSrcWidth = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        mSrcHeight = mSrcWidth * 3 / 4;
+        mSrc = Images.page(mSrcWidth, mSrcHeight);
+        float[] quad = Images.rotatedQuad(mSrcWidth, mSrcHeight, degrees);
+        mWidth = PerspectiveWarp.getOutputWidth(quad);
+        mHeight = PerspectiveWarp.getOutputHeight(quad);
+        mTransform = PerspectiveWarp.computeTransform(quad, mWidth, mHeight);
+        mDst = new int[mWidth * STRIP_ROWS];
+    }
+
+    @Benchmark
+    public int[] crop() {
+        long maxPixels = budget > 0 ? budget : Long.MAX_VALUE;
+        int size = 0;
+        for (int y = 0; y < mHeight; y += STRIP_ROWS) {
+            for (int[] block : PerspectiveWarp.splitWindows(mTransform, mSrcWidth, mSrcHeight, 0, mWidth, y,
+                    Math.min(mHeight, y + STRIP_ROWS), maxPixels)) {
+                size = Math.max(size, block[2] * block[3]);
+            }
+        }
+        int[] window = new int[size];
+        for (int y = 0; y < mHeight; y += STRIP_ROWS) {
+            for (int[] block : PerspectiveWarp.splitWindows(mTransform, mSrcWidth, mSrcHeight, 0, mWidth, y,
+                    Math.min(mHeight, y + STRIP_ROWS), maxPixels)) {
+                int width = block[2], height = block[3];
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(mSrc, (block[1] + row) * mSrcWidth + block[0], window, row * width, width);
+                }
+                double[] m = PerspectiveWarp.offsetSource(mTransform.clone(), block[0], block[1]);
+                PerspectiveWarp.warp(window, width, height, m, mDst, (block[6] - y) * mWidth + block[4], mWidth,
+                        block[4], block[5], block[6], block[7]);
+            }
+        }
+        return mDst;
+    }
+}
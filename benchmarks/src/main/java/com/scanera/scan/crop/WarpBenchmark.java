@@ -0,0 +1,73 @@
+package com.scanera.scan.crop;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full-page perspective crops at 1, 12 and 50 MP: bilinear and nearest on one thread, and
+ * bilinear in parallel bands the way the view crops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class WarpBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    private int[] mSrc;
+    private int mSrcWidth, mSrcHeight;
+    private double[] mTransform;
+    private int[] mDst;
+    private int mWidth, mHeight;
+
+    @Setup
+    public void setUp() {
+        mSrcWidth = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        mSrcHeight = mSrcWidth * 3 / 4;
+        mSrc = Images.page(mSrcWidth, mSrcHeight);
+        float[] quad = Images.quad(mSrcWidth, mSrcHeight);
+        mWidth = PerspectiveWarp.getOutputWidth(quad);
+        mHeight = PerspectiveWarp.getOutputHeight(quad);
+        mTransform = PerspectiveWarp.computeTransform(quad, mWidth, mHeight);
+        mDst = new int[mWidth * mHeight];
+    }
+
+    @Benchmark
+    public int[] bilinear() {
+        PerspectiveWarp.warp(mSrc, mSrcWidth, mSrcHeight, mTransform, mDst, 0, mWidth, 0, mHeight);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] nearest() {
+        PerspectiveWarp.warpNearest(mSrc, mSrcWidth, mSrcHeight, mTransform, mDst, 0, mWidth, 0, mHeight);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] bilinearParallel() {
+        ParallelBands.run(mHeight, ParallelBands.getMaxParallelism(), new ParallelBands.Band() {
+            @Override
+            public void run(int rowStart, int rowEnd) {
+                PerspectiveWarp.warp(mSrc, mSrcWidth, mSrcHeight, mTransform, mDst, rowStart * mWidth, mWidth,
+                        rowStart, rowEnd);
+            }
+        });
+        return mDst;
+    }
+}
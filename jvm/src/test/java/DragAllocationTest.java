@@ -0,0 +1,229 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Scripted drags through the math the view runs on every move event and frame: mapping the
+ * touch into the image, edge snapping, the drag itself with its convexity or simplicity checks,
+ * view positions of the handles and edge mid points, rebuilding the handle grid, the dirty
+ * bounds, which handles move, and render stats. Once warmed up, no frame of it may allocate.
+ * <p>
+ * What needs Android is not covered: reading the MotionEvent and its touch prediction, and the
+ * Canvas, Path and Picture calls of the overlay.
+ */
+public class DragAllocationTest {
+
+    private static final int WIDTH = 4000, HEIGHT = 3000;
+    // the image fills a 1000 x 750 px view rect at (40, 100)
+    private static final float SCALE = 0.25f;
+    private static final int LEFT = 40, TOP = 100;
+    private static final float CATCH_DISTANCE = 24;
+    private static final float SNAP_DISTANCE = 16;
+    private static final int MAX_SNAP_RADIUS = 8;
+    private static final int FRAMES = 2000;
+    private static final int WARMUP_PASSES = 20;
+    private static final int PASSES = 3;
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final CompilationMXBean mCompiler = ManagementFactory.getCompilationMXBean();
+
+    private float[] mQuad;
+    private float[] mPolygon;
+    private float[] mHandles;
+    private float[] mMidPoints;
+    private final HandleGrid mGrid = new HandleGrid();
+    private final RenderStats mStats = new RenderStats();
+    private final float[] mSnapPoint = new float[2];
+    private final int[] mDragBounds = new int[4];
+    private int mMovingHandles;
+    private GradientField mField;
+
+    @Before
+    public void setUp() {
+        assertTrue(mThreads.isThreadAllocatedMemorySupported());
+        assertTrue(mCompiler.isCompilationTimeMonitoringSupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mQuad = new float[]{200, 150, 3800, 150, 3800, 2850, 200, 2850};
+        mPolygon = new float[24];
+        for (int i = 0; i < 12; i++) {
+            double angle = Math.PI * 2 * i / 12;
+            mPolygon[i * 2] = (float) (WIDTH / 2 + Math.cos(angle) * 1200);
+            mPolygon[i * 2 + 1] = (float) (HEIGHT / 2 + Math.sin(angle) * 1200);
+        }
+        mHandles = new float[mPolygon.length * 2];
+        mMidPoints = new float[mPolygon.length];
+
+        // a bright page on a dark table, downscaled like the view does
+        int fieldWidth = 512, fieldHeight = 384;
+        byte[] gray = new byte[fieldWidth * fieldHeight];
+        for (int y = 0; y < fieldHeight; y++) {
+            for (int x = 0; x < fieldWidth; x++) {
+                boolean page = x >= 40 && x < 470 && y >= 30 && y < 350;
+                gray[y * fieldWidth + x] = (byte) (page ? 220 : 40);
+            }
+        }
+        mField = GradientField.compute(gray, fieldWidth, fieldHeight);
+    }
+
+    @Test
+    public void quadDragDoesNotAllocate() {
+        assertNoAllocation("quad", new Runnable() {
+            @Override
+            public void run() {
+                dragQuad(FRAMES);
+            }
+        });
+    }
+
+    @Test
+    public void polygonDragDoesNotAllocate() {
+        assertNoAllocation("polygon", new Runnable() {
+            @Override
+            public void run() {
+                dragPolygon(FRAMES);
+            }
+        });
+    }
+
+    @Test
+    public void dragStillMovesPoints() {
+        float[] before = mQuad.clone();
+        dragQuad(10);
+        assertTrue(before[0] != mQuad[0] || before[1] != mQuad[1]);
+        assertTrue(CropGeometry.isConvexQuad(mQuad));
+        dragPolygon(10);
+        assertTrue(CropGeometry.isSimplePolygon(mPolygon, 12));
+    }
+
+    @Test
+    public void touchesMapIntoTheShownImage() {
+        assertEquals(1000, OverlayGeometry.toImage(OverlayGeometry.toView(1000, SCALE, LEFT), SCALE, LEFT, 1000), 1e-3);
+        assertEquals(0, OverlayGeometry.toImage(LEFT - 30, SCALE, LEFT, 1000), 0);
+        assertEquals(WIDTH, OverlayGeometry.toImage(LEFT + 1200, SCALE, LEFT, 1000), 0);
+    }
+
+    @Test
+    public void dragBoundsCoverTheMovingEdges() {
+        updateHandles(mQuad, 4);
+        // corner 0 moves the edges to corners 3 and 1
+        OverlayGeometry.getDragBounds(mQuad, 4, 0, SCALE, SCALE, LEFT, TOP, mDragBounds);
+        assertEquals(LEFT + 50, mDragBounds[0]);
+        assertEquals(TOP + 37, mDragBounds[1]);
+        assertEquals(LEFT + 951, mDragBounds[2]);
+        assertEquals(TOP + 713, mDragBounds[3]);
+        // the mid point of the right edge moves corners 1 and 2, so edges 0 to 2
+        assertTrue(OverlayGeometry.isMovingVertex(5, 1, 4));
+        assertTrue(OverlayGeometry.isMovingVertex(5, 2, 4));
+        assertTrue(!OverlayGeometry.isMovingVertex(5, 3, 4));
+        assertTrue(!OverlayGeometry.isMovingEdge(5, 3, 4));
+        assertTrue(OverlayGeometry.isMovingEdge(5, 0, 4));
+    }
+
+    @Test
+    public void snapLandsOnThePageEdge() {
+        // the page's left edge is at field x 40, image x 312.5
+        assertTrue(OverlayGeometry.snap(mField, 330, 1500, SNAP_DISTANCE, SCALE, WIDTH, HEIGHT, MAX_SNAP_RADIUS,
+                mSnapPoint));
+        assertEquals(312.5, mSnapPoint[0], 8);
+    }
+
+    // corner 0 on a small circle, then the right edge back and forth; positions in image px
+    private void dragQuad(int frames) {
+        int handle = down(mQuad, 4, mQuad[0], mQuad[1]);
+        for (int i = 0; i < frames; i++) {
+            double angle = i * 0.05;
+            frame(mQuad, 4, handle, (float) (300 + Math.cos(angle) * 80), (float) (250 + Math.sin(angle) * 80), true);
+        }
+        handle = down(mQuad, 4, (mQuad[2] + mQuad[4]) / 2, (mQuad[3] + mQuad[5]) / 2);
+        for (int i = 0; i < frames; i++) {
+            frame(mQuad, 4, handle, 3600 + (i % 100) * 3, 1500, false);
+        }
+    }
+
+    // vertex 3 and edge 7 of a 12-gon
+    private void dragPolygon(int frames) {
+        int handle = down(mPolygon, 12, mPolygon[6], mPolygon[7]);
+        for (int i = 0; i < frames; i++) {
+            frame(mPolygon, 12, handle, mPolygon[6] + (i % 20 < 10 ? 2 : -2), mPolygon[7] + 1, true);
+        }
+        handle = down(mPolygon, 12, (mPolygon[14] + mPolygon[16]) / 2, (mPolygon[15] + mPolygon[17]) / 2);
+        for (int i = 0; i < frames; i++) {
+            float x = (mPolygon[14] + mPolygon[16]) / 2 + (i % 20 < 10 ? 3 : -3);
+            frame(mPolygon, 12, handle, x, (mPolygon[15] + mPolygon[17]) / 2, false);
+        }
+    }
+
+    private int down(float[] points, int count, float x, float y) {
+        updateHandles(points, count);
+        float viewX = OverlayGeometry.toView(x, SCALE, LEFT), viewY = OverlayGeometry.toView(y, SCALE, TOP);
+        int handle = mGrid.find(mHandles, viewX, viewY, CATCH_DISTANCE);
+        if (handle < 0) {
+            fail("no handle at " + x + ", " + y);
+        }
+        return handle;
+    }
+
+    // a move event to image point (x, y) and the frame it draws, as the view runs them
+    private void frame(float[] points, int count, int handle, float x, float y, boolean snap) {
+        long time = System.nanoTime();
+        x = OverlayGeometry.toImage(OverlayGeometry.toView(x, SCALE, LEFT), SCALE, LEFT, Math.round(WIDTH * SCALE));
+        y = OverlayGeometry.toImage(OverlayGeometry.toView(y, SCALE, TOP), SCALE, TOP, Math.round(HEIGHT * SCALE));
+        if (snap && handle < count && OverlayGeometry.snap(mField, x, y, SNAP_DISTANCE, SCALE, WIDTH, HEIGHT,
+                MAX_SNAP_RADIUS, mSnapPoint)) {
+            x = mSnapPoint[0];
+            y = mSnapPoint[1];
+        }
+        OverlayGeometry.getDragBounds(points, count, handle, SCALE, SCALE, LEFT, TOP, mDragBounds);
+        CropGeometry.moveHandle(points, count, handle, x, y, true, WIDTH, HEIGHT);
+        OverlayGeometry.getDragBounds(points, count, handle, SCALE, SCALE, LEFT, TOP, mDragBounds);
+        time = mStats.record(RenderStats.STAGE_TOUCH, time);
+        updateHandles(points, count);
+        for (int i = 0; i < count; i++) {
+            if (OverlayGeometry.isMovingVertex(handle, i, count)) {
+                mMovingHandles++;
+            }
+            if (OverlayGeometry.isMovingEdge(handle, i, count)) {
+                mMovingHandles++;
+            }
+        }
+        mStats.record(RenderStats.STAGE_POINTS, time);
+    }
+
+    private void updateHandles(float[] points, int count) {
+        OverlayGeometry.toView(points, count, SCALE, SCALE, LEFT, TOP, mMidPoints, mHandles);
+        mGrid.build(mHandles, count * 2, CATCH_DISTANCE);
+    }
+
+    // the first passes grow the handle grid, and while the JIT still compiles the drag code a
+    // deoptimization can drop into the interpreter, which allocates on this thread the first
+    // time it resolves a call. So it warms up until a pass is clean and compiles nothing; after
+    // that every pass must be free of garbage
+    private void assertNoAllocation(String shape, Runnable work) {
+        boolean steady = false;
+        for (int i = 0; i < WARMUP_PASSES && !steady; i++) {
+            long compileTime = mCompiler.getTotalCompilationTime();
+            steady = allocatedDuring(work) == 0 && mCompiler.getTotalCompilationTime() == compileTime;
+        }
+        assertTrue(shape + " drag still allocates or compiles after " + WARMUP_PASSES + " passes", steady);
+        for (int i = 0; i < PASSES; i++) {
+            assertEquals("bytes allocated by pass " + i + " of " + FRAMES + " " + shape + " drag frames",
+                    0, allocatedDuring(work));
+        }
+    }
+
+    private long allocatedDuring(Runnable work) {
+        long thread = Thread.currentThread().getId();
+        long first = mThreads.getThreadAllocatedBytes(thread);
+        long overhead = mThreads.getThreadAllocatedBytes(thread) - first;
+        long start = mThreads.getThreadAllocatedBytes(thread);
+        work.run();
+        return mThreads.getThreadAllocatedBytes(thread) - start - overhead;
+    }
+}